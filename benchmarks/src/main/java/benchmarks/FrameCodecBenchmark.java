@@ -0,0 +1,164 @@
+package benchmarks;
+
+import connections.ConnectionSettings;
+import frames.ContinuationFrame;
+import frames.DataFrame;
+import frames.ErrorCode;
+import frames.Frame;
+import frames.FrameType;
+import frames.GoAwayFrame;
+import frames.HeadersFrame;
+import frames.PingFrame;
+import frames.PriorityFrame;
+import frames.PushPromiseFrame;
+import frames.RSTStreamFrame;
+import frames.SettingsFrame;
+import frames.WindowUpdateFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding of every frame type.
+ * <p>
+ * Encoding is {@link Frame#bytes()}, as done by the writer of a connection.
+ * Decoding parses the 9-octet header and constructs the frame from its payload,
+ * as done when a connection receives a frame. HEADERS and PUSH_PROMISE frames include HPACK in both.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    private static final String HEADERS = ":method:GET\r\n"
+            + ":scheme:https\r\n"
+            + ":authority:www.example.com\r\n"
+            + ":path:/index.html\r\n"
+            + "user-agent:Mozilla/5.0 (X11; Linux x86_64; rv:60.0) Gecko/20100101 Firefox/60.0\r\n"
+            + "accept:text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "accept-language:en-US,en;q=0.5\r\n"
+            + "accept-encoding:gzip, deflate, br\r\n";
+    private static final String COOKIE = "cookie:session=5f2b8c1e9a7d4c3b8e6f1a2d9c4b7e3f; theme=dark; lang=en-US\r\n";
+
+    @Param({"DATA_16", "DATA_1024", "DATA_16384", "DATA_PADDED",
+            "HEADERS", "HEADERS_PRIORITY", "HEADERS_PADDED",
+            "PRIORITY", "RST_STREAM", "SETTINGS", "PUSH_PROMISE", "PING", "GOAWAY", "WINDOW_UPDATE", "CONTINUATION"})
+    public String frame;
+
+    private Frame decoded;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() {
+        decoded = create(frame);
+        encoded = decoded.bytes();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return decoded.bytes();
+    }
+
+    @Benchmark
+    public Frame decode() {
+        return decode(encoded.duplicate());
+    }
+
+    private static Frame create(String name) {
+        ByteBuffer headers = ByteBuffer.wrap(HEADERS.getBytes(StandardCharsets.US_ASCII));
+        switch (name) {
+            case "DATA_16":
+                return new DataFrame(1, random(16), false);
+            case "DATA_1024":
+                return new DataFrame(1, random(1024), false);
+            case "DATA_16384":
+                return new DataFrame(1, random(16384), false);
+            case "DATA_PADDED":
+                return new DataFrame(1, random(1024), (short) 32, true);
+            case "HEADERS":
+                return new HeadersFrame(1, true, true, (short) 0, headers);
+            case "HEADERS_PRIORITY":
+                return new HeadersFrame(1, true, true, (short) 0, headers, false, 0, (short) 15);
+            case "HEADERS_PADDED":
+                return new HeadersFrame(1, true, true, (short) 32, headers);
+            case "PRIORITY":
+                return new PriorityFrame(1, true, 3, (short) 15);
+            case "RST_STREAM":
+                return new RSTStreamFrame(1, ErrorCode.CANCEL);
+            case "SETTINGS":
+                return new SettingsFrame(0, false, ConnectionSettings.getDefault());
+            case "PUSH_PROMISE":
+                return new PushPromiseFrame(1, (short) 0, 2, headers, true);
+            case "PING":
+                return new PingFrame(0, false, random(8));
+            case "GOAWAY":
+                return new GoAwayFrame(0, 7, ErrorCode.NO_ERROR, ByteBuffer.allocate(0));
+            case "WINDOW_UPDATE":
+                return new WindowUpdateFrame(0, 65535);
+            case "CONTINUATION":
+                return new ContinuationFrame(1, true, ByteBuffer.wrap(COOKIE.getBytes(StandardCharsets.US_ASCII)));
+            default:
+                throw new IllegalArgumentException("Unknown frame " + name);
+        }
+    }
+
+    private static ByteBuffer random(int length) {
+        byte[] b = new byte[length];
+        ThreadLocalRandom.current().nextBytes(b);
+        return ByteBuffer.wrap(b);
+    }
+
+    /**
+     * Decodes a frame the way a connection does when it is received.
+     *
+     * @param b the frame, including its header.
+     * @return the decoded frame.
+     */
+    static Frame decode(ByteBuffer b) {
+        int next = b.getInt();
+        byte type = (byte) (next & 0xff);
+        byte flags = b.get();
+        int streamId = b.getInt() & Integer.MAX_VALUE;
+        ByteBuffer payload = b.slice();
+        switch (FrameType.from(type)) {
+            case DATA:
+                return new DataFrame(flags, streamId, payload);
+            case HEADERS:
+                return new HeadersFrame(flags, streamId, payload);
+            case PRIORITY:
+                return new PriorityFrame(flags, streamId, payload);
+            case RST_STREAM:
+                return new RSTStreamFrame(flags, streamId, payload);
+            case SETTINGS:
+                return new SettingsFrame(flags, streamId, payload);
+            case PUSH_PROMISE:
+                return new PushPromiseFrame(flags, streamId, payload);
+            case PING:
+                return new PingFrame(flags, streamId, payload);
+            case GOAWAY:
+                return new GoAwayFrame(flags, streamId, payload);
+            case WINDOW_UPDATE:
+                return new WindowUpdateFrame(flags, streamId, payload);
+            case CONTINUATION:
+                return new ContinuationFrame(flags, streamId, payload);
+            default:
+                throw new IllegalArgumentException("Unknown frame type " + type);
+        }
+    }
+}
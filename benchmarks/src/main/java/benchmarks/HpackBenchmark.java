@@ -0,0 +1,121 @@
+package benchmarks;
+
+import frames.HeaderCompressor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static frames.HeaderCompressor.DEFAULT_TABLE_SIZE;
+
+/**
+ * Measures HPACK encoding and decoding of the header blocks of a {@link HpackCorpus}, one block per operation.
+ * <p>
+ * With a cold table every block is coded with an empty dynamic table, like {@link HeaderCompressor#compress}.
+ * With a warm table one compressor codes the blocks in order, after the whole corpus has been sent once,
+ * like a connection that has been in use for a while. The compression ratio of the corpus,
+ * the size of the encoded blocks divided by the size of the blocks as text, is printed during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HpackBenchmark {
+
+    @Param({"BROWSER", "REST", "GRPC", "COOKIES"})
+    public String corpus;
+
+    @Param({"false", "true"})
+    public boolean warm;
+
+    private ByteBuffer[] blocks;
+    private byte[][] encoded;
+    private HeaderCompressor encoder;
+    private HeaderCompressor decoder;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        List<byte[]> raw = HpackCorpus.valueOf(corpus).bytes();
+        blocks = new ByteBuffer[raw.size()];
+        long textBytes = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = ByteBuffer.wrap(raw.get(i));
+            textBytes += raw.get(i).length;
+        }
+        if (warm) {
+            encoder = new HeaderCompressor(DEFAULT_TABLE_SIZE);
+            decoder = new HeaderCompressor(DEFAULT_TABLE_SIZE);
+            decodeAll(decoder, encodeAll(encoder));
+            encoded = encodeAll(encoder);
+            decodeAll(decoder, encoded);
+            // the blocks decoded during the benchmark only match the table of the decoder if the tables no longer change
+            if (!Arrays.deepEquals(encoded, encodeAll(encoder))) {
+                throw new IllegalStateException("Corpus " + corpus + " does not fit in the dynamic table");
+            }
+        } else {
+            encoded = new byte[blocks.length][];
+            for (int i = 0; i < blocks.length; i++) {
+                encoded[i] = toArray(HeaderCompressor.compress(blocks[i]));
+            }
+        }
+        long encodedBytes = 0;
+        for (byte[] b : encoded) {
+            encodedBytes += b.length;
+        }
+        System.out.printf("%n%s with a %s table: %d bytes of headers encoded to %d bytes, compression ratio %.3f%n",
+                corpus, warm ? "warm" : "cold", textBytes, encodedBytes, (double) encodedBytes / textBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        ByteBuffer block = blocks[nextBlock()];
+        return warm ? encoder.encode(block) : HeaderCompressor.compress(block);
+    }
+
+    @Benchmark
+    public String decode() {
+        byte[] block = encoded[nextBlock()];
+        return warm ? decoder.decode(block) : HeaderCompressor.decompress(block);
+    }
+
+    private int nextBlock() {
+        int i = next;
+        next = i + 1 == blocks.length ? 0 : i + 1;
+        return i;
+    }
+
+    private byte[][] encodeAll(HeaderCompressor compressor) {
+        byte[][] out = new byte[blocks.length][];
+        for (int i = 0; i < blocks.length; i++) {
+            out[i] = toArray(compressor.encode(blocks[i]));
+        }
+        return out;
+    }
+
+    private static void decodeAll(HeaderCompressor compressor, byte[][] encoded) {
+        for (byte[] block : encoded) {
+            compressor.decode(block);
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer b) {
+        byte[] bytes = new byte[b.remaining()];
+        b.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,68 @@
+package capture;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads the frames of a capture file written by {@link FrameRecorder}, in the order they were recorded.
+ * Records whose frame could not be written are skipped.
+ */
+public class CaptureReader implements Closeable {
+
+    private final DataInputStream in;
+    public final long startMillis;
+
+    /**
+     * Opens a capture file.
+     *
+     * @param path the path of the capture file.
+     * @throws IOException if the file can not be read, or is not a capture file.
+     */
+    public CaptureReader(Path path) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        if (in.readInt() != FrameRecorder.MAGIC) {
+            in.close();
+            throw new IOException("Not a capture file: " + path);
+        }
+        short version = in.readShort();
+        if (version != FrameRecorder.VERSION) {
+            in.close();
+            throw new IOException("Unsupported capture version: " + version);
+        }
+        in.readShort();
+        this.startMillis = in.readLong();
+    }
+
+    /**
+     * @return the next frame, or null at the end of the file.
+     * @throws IOException if the file can not be read.
+     */
+    public CapturedFrame next() throws IOException {
+        while (true) {
+            long nanos;
+            try {
+                nanos = in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            int connectionId = in.readInt();
+            byte direction = in.readByte();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            if (direction != FrameRecorder.SKIPPED) {
+                return new CapturedFrame(nanos, connectionId, direction == 0, ByteBuffer.wrap(bytes));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,27 @@
+package capture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frame read from a capture file.
+ */
+public class CapturedFrame {
+
+    public final long nanos;
+    public final int connectionId;
+    public final boolean received;
+    public final ByteBuffer bytes;
+
+    /**
+     * @param nanos        the nanoseconds since the capture started.
+     * @param connectionId the id of the connection of the frame.
+     * @param received     true if the frame was received, false if it was sent.
+     * @param bytes        the bytes of the frame, including its frame header.
+     */
+    public CapturedFrame(long nanos, int connectionId, boolean received, ByteBuffer bytes) {
+        this.nanos = nanos;
+        this.connectionId = connectionId;
+        this.received = received;
+        this.bytes = bytes;
+    }
+}
@@ -0,0 +1,165 @@
+package capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records raw frames of many connections to a capture file, to be replayed later with {@link CaptureReader}.
+ * <p>
+ * The file starts with a header of 16 bytes: the magic number {@code H2CP}, a version, and the time
+ * the capture started in milliseconds since the epoch. Each record that follows has a header of 17 bytes:
+ * the nanoseconds since the capture started, the connection id, the direction (0 for received and 1 for sent)
+ * and the length of the frame, followed by the frame itself, including its frame header.
+ * A record is written with the direction {@link #SKIPPED} and only given its real direction once the frame
+ * has been copied in whole, so a record whose frame could not be written is skipped by readers instead of
+ * misaligning the records after it. Should even its header fail, the file is cut before it when closed.
+ * <p>
+ * The file is written through memory-mapped regions of 64 MiB. Recording a frame reserves its space with
+ * a single atomic add, and copies it into the mapped regions, so connections never wait for each other or for the disk.
+ * Once the file has reached its largest size, further frames are dropped and counted.
+ */
+public class FrameRecorder implements Closeable {
+
+    static final int MAGIC = 0x48324350;
+    static final short VERSION = 1;
+    static final int FILE_HEADER = 16;
+    static final int RECORD_HEADER = 17;
+    static final byte SKIPPED = 2;
+    private static final int DIRECTION_OFFSET = 12;
+    private static final int REGION_SIZE = 64 << 20;
+
+    private final FileChannel channel;
+    private final long maxBytes;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong position = new AtomicLong(FILE_HEADER);
+    private final AtomicLong end = new AtomicLong(FILE_HEADER);
+    private final AtomicLong hole = new AtomicLong(Long.MAX_VALUE); // the first record without a header
+    private final AtomicReferenceArray<MappedByteBuffer> regions;
+    private final AtomicInteger writing = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a capture file, replacing any file at the path.
+     *
+     * @param path     the path of the capture file.
+     * @param maxBytes the largest size of the capture file.
+     * @throws IOException if the file can not be created.
+     */
+    public FrameRecorder(Path path, long maxBytes) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.maxBytes = Math.max(FILE_HEADER, maxBytes);
+        this.regions = new AtomicReferenceArray<>((int) ((this.maxBytes + REGION_SIZE - 1) / REGION_SIZE));
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(System.currentTimeMillis());
+        write(0, header.flip());
+    }
+
+    /**
+     * Records a frame. Safe to call from any thread.
+     *
+     * @param connectionId the id of the connection of the frame.
+     * @param received     true if the frame was received, false if it was sent.
+     * @param frame        the bytes of the frame, from its position to its limit. The position is not changed.
+     */
+    public void record(int connectionId, boolean received, ByteBuffer frame) {
+        writing.incrementAndGet();
+        try {
+            if (closed) {
+                return;
+            }
+            int length = frame.remaining();
+            long offset = position.getAndAdd(RECORD_HEADER + length);
+            if (offset + RECORD_HEADER + length > maxBytes) {
+                dropped.increment();
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            header.putLong(System.nanoTime() - startNanos).putInt(connectionId).put(SKIPPED).putInt(length);
+            try {
+                write(offset, header.flip());
+            } catch (IOException e) {
+                hole.accumulateAndGet(offset, Math::min);
+                dropped.increment();
+                return;
+            }
+            end.accumulateAndGet(offset + RECORD_HEADER + length, Math::max);
+            try {
+                write(offset + RECORD_HEADER, frame.duplicate());
+                write(offset + DIRECTION_OFFSET, ByteBuffer.wrap(new byte[]{(byte) (received ? 0 : 1)}));
+            } catch (IOException e) {
+                dropped.increment(); // left as SKIPPED
+            }
+        } finally {
+            writing.decrementAndGet();
+        }
+    }
+
+    private void write(long offset, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            int index = (int) (offset / REGION_SIZE);
+            int off = (int) (offset % REGION_SIZE);
+            int n = Math.min(src.remaining(), REGION_SIZE - off);
+            ByteBuffer dst = region(index).duplicate();
+            dst.position(off);
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            dst.put(src);
+            src.limit(limit);
+            offset += n;
+        }
+    }
+
+    private MappedByteBuffer region(int index) throws IOException {
+        MappedByteBuffer region = regions.get(index);
+        if (region == null) {
+            synchronized (this) {
+                region = regions.get(index);
+                if (region == null) {
+                    region = channel.map(FileChannel.MapMode.READ_WRITE, (long) index * REGION_SIZE, REGION_SIZE);
+                    regions.set(index, region);
+                }
+            }
+        }
+        return region;
+    }
+
+    /**
+     * @return the number of frames dropped because the capture file was full or could not be written.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops recording, waits for frames being recorded, and cuts the file to the recorded frames,
+     * or before the first record whose header could not be written.
+     *
+     * @throws IOException if the file can not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        while (writing.get() > 0) {
+            Thread.onSpinWait();
+        }
+        for (int i = 0; i < regions.length(); i++) {
+            MappedByteBuffer region = regions.get(i);
+            if (region != null) {
+                region.force();
+            }
+        }
+        channel.truncate(Math.min(end.get(), hole.get()));
+        channel.close();
+    }
+}
@@ -1,35 +1,136 @@
 package connections;
 
+import capture.FrameRecorder;
 import frames.*;
+import logging.Log;
+import metrics.Metrics;
 import streams.Stream;
 import streams.StreamState;
 
-import java.io.BufferedReader;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static frames.ErrorCode.FLOW_CONTROL_ERROR;
 import static frames.ErrorCode.FRAME_SIZE_ERROR;
 import static frames.ErrorCode.HTTP_1_1_REQUIRED;
+import static frames.ErrorCode.PROTOCOL_ERROR;
+import static frames.ErrorCode.SETTINGS_TIMEOUT;
+import static frames.Setting.SETTINGS_INITIAL_WINDOW_SIZE;
 import static streams.StreamState.*;
 
 /**
  * An abstract class to use when creating connections.
+ * <p>
+ * Local settings take effect when the peer acknowledges them. Every SETTINGS frame sent is queued,
+ * and its ACK swaps in a new snapshot of the acknowledged settings, which is what received frames are checked
+ * against, so the peer is never held to a limit it has not seen yet. See {@link SettingsProfile}.
+ * Settings received from the peer are published the same way, as a new snapshot for each SETTINGS frame,
+ * so the writer and handlers reading them never see a frame half applied.
+ * <p>
+ * Received header blocks are decoded in order with one dynamic table for the connection, sized to the
+ * acknowledged SETTINGS_HEADER_TABLE_SIZE, so a peer may index entries until it has acknowledged a smaller table.
+ * A header block that cannot be decoded closes the connection with COMPRESSION_ERROR.
+ * <p>
+ * Received DATA frames are held to the receive windows of their stream and of the connection, which shrink
+ * by the length of each DATA frame and grow by each WINDOW_UPDATE sent. A frame beyond the window of its stream
+ * resets the stream, and a frame beyond the window of the connection closes it, with FLOW_CONTROL_ERROR.
+ * A larger local SETTINGS_INITIAL_WINDOW_SIZE applies to the receive windows as soon as it is sent,
+ * and a smaller one once the peer has acknowledged it. WINDOW_UPDATE frames and SETTINGS that would grow
+ * a send window beyond 2^31-1 are also answered with FLOW_CONTROL_ERROR.
+ * <p>
+ * Timeouts are run by a shared {@link TimerWheel}, with one pending timeout for the connection and one for
+ * each open stream. Receiving frames only records the time, and a timeout that finds recent activity is
+ * scheduled again for the remaining time. A timeout of 0 disables the check.
+ * <ul>
+ * <li>A connection without open streams for {@link #idleTimeoutMillis} is closed with a GOAWAY frame.</li>
+ * <li>A connection that has received nothing for {@link #keepAliveMillis} is sent a PING,
+ * and is closed if nothing has been received after as long again.</li>
+ * <li>A connection whose TLS handshake and first request, such as the client preface, have not been read
+ * within {@link #handshakeTimeoutMillis} is closed.</li>
+ * <li>A SETTINGS frame not acknowledged within {@link #settingsTimeoutMillis} closes the connection
+ * with a GOAWAY frame of type SETTINGS_TIMEOUT.</li>
+ * <li>A stream waiting for frames from the peer for {@link #streamReadTimeoutMillis}, or with queued frames that
+ * have not been written for {@link #streamWriteTimeoutMillis}, is reset with RST_STREAM(CANCEL).</li>
+ * <li>A closed connection whose last frames have not been written within {@link #closeGraceMillis},
+ * because the peer does not read them, has its socket closed anyway.</li>
+ * </ul>
  */
 public abstract class AbstractConnection implements ConnectionInterface {
 
-    protected ConnectionSettings settings = ConnectionSettings.getDefault();
+    /**
+     * The connection preface sent by clients before their first frame.
+     */
+    protected static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    protected volatile ConnectionSettings settings = ConnectionSettings.getDefault();
+    protected ConnectionSettings localSettings = ConnectionSettings.getUndefined();
+    protected int connectionWindowSize = SETTINGS_INITIAL_WINDOW_SIZE.defaultValue;
     protected int idIncrement = 1;
-    protected Map<Integer, Stream> streamMap = new HashMap<>();
+    protected Map<Integer, Stream> streamMap = new ConcurrentHashMap<>();
     protected Socket socket;
     protected Stream root;
-    protected Thread thread;
+    protected volatile Thread thread;
+    protected volatile int lastStreamId = 0;
+    protected TokenBucket controlFrameBudget = new TokenBucket(1000, 100);
+    protected TokenBucket resetBudget = new TokenBucket(200, 100);
+    protected int maxQueuedControlFrames = 10000;
+    protected volatile int maxAcceptedStreamId = Integer.MAX_VALUE;
+    private volatile boolean draining = false;
+    private volatile long drainPingData;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
+    private final List<Runnable> closeListeners = new ArrayList<>();
+    private static final AtomicInteger connectionIds = new AtomicInteger();
+
+    public final int connectionId = connectionIds.incrementAndGet();
+    protected final Metrics metrics = new Metrics(Metrics.global());
+    protected volatile FrameRecorder recorder;
+    final FrameWriter writer = new FrameWriter(this);
+    protected TimerWheel timer = TimerWheel.shared();
+    protected long handshakeTimeoutMillis = 10_000;
+    protected long idleTimeoutMillis = 120_000;
+    protected long keepAliveMillis = 30_000;
+    protected long settingsTimeoutMillis = 10_000;
+    protected long streamReadTimeoutMillis = 60_000;
+    protected long streamWriteTimeoutMillis = 60_000;
+    protected long closeGraceMillis = 1_000;
+    private volatile long lastRead = System.nanoTime();
+    private volatile long lastActive = lastRead;
+    private volatile boolean keepAlivePending = false;
+    private final AtomicInteger settingsSent = new AtomicInteger();
+    private volatile int settingsAcked = 0;
+    private final Queue<ConnectionSettings> settingsInFlight = new ConcurrentLinkedQueue<>();
+    private volatile ConnectionSettings acknowledgedSettings = ConnectionSettings.getDefault();
+    private final HeaderCompressor headerDecoder = new HeaderCompressor(HeaderCompressor.DEFAULT_TABLE_SIZE); // reader thread only
+    private volatile int receiveInitialWindow = SETTINGS_INITIAL_WINDOW_SIZE.defaultValue;
+    private volatile TimerWheel.Timeout connectionTimeout;
+    private final Map<Integer, TimerWheel.Timeout> streamTimeouts = new ConcurrentHashMap<>();
+    private final AtomicInteger unacknowledged = new AtomicInteger();
+    private InputStream input;
+    private final FrameHandler[] handlers = defaultHandlers();
 
     /**
-     * Creates a connection with a socket.
+     * Creates a connection with a socket. The connection does not read or write
+     * anything before {@link #start()} is called. For an SSL socket, a TLS handshake completed
+     * after this is counted in the metrics of the connection, as a new or a resumed session.
      *
      * @param socket the socket to send data over.
      */
@@ -37,90 +138,381 @@ public abstract class AbstractConnection implements ConnectionInterface {
         this.socket = socket;
         this.root = new Stream(0, null);
         addStream(root);
+        metrics.connectionOpened();
+        if (socket instanceof SSLSocket) {
+            // a resumed session was created before this connection, a new one during its handshake
+            long createdAt = System.currentTimeMillis();
+            ((SSLSocket) socket).addHandshakeCompletedListener(
+                    e -> metrics.tlsHandshake(e.getSession().getCreationTime() < createdAt));
+        }
+    }
 
+    /**
+     * Starts the connection by handling the first request,
+     * and then reading frames on a thread of its own.
+     * Blocks until the first request has been read, or {@link #handshakeTimeoutMillis} has passed.
+     */
+    public void start() {
         try {
+            writer.start();
+            socket.setSoTimeout((int) Math.min(handshakeTimeoutMillis, Integer.MAX_VALUE));
             onFirstRequest();
-            this.thread = new ConnectionThread(this);
+            if (isClosed()) {
+                return;
+            }
+            socket.setSoTimeout(0);
+            this.thread = newReader();
             this.thread.start();
+            if (isClosed()) {
+                thread.interrupt(); // closed while starting
+                return;
+            }
+            long delay = Math.min(positive(idleTimeoutMillis), positive(keepAliveMillis));
+            if (delay != Long.MAX_VALUE) {
+                connectionTimeout = timer.schedule(this::checkConnection, delay);
+            }
+        } catch (ConnectionException e) {
+            Log.warn("Connection error: " + e.errorCode.name());
+            goAway(e.errorCode);
+        } catch (SocketTimeoutException e) {
+            Log.debug("No request within {} ms from {}, closing connection", handshakeTimeoutMillis, socket.getRemoteSocketAddress());
+            close();
         } catch (IOException e) {
-            System.err.println("Connection failure");
+            Log.warn("Connection failure", e);
+            close();
+        } catch (RuntimeException e) {
+            Log.error("Connection failure", e);
+            close();
         }
+    }
 
+    /**
+     * Handles a frame read by the connection thread. A stream error resets only its stream,
+     * while a connection error closes the connection with a GOAWAY frame.
+     *
+     * @param frame the frame, with its header.
+     * @throws IOException if the connection is closed.
+     */
+    void receive(ByteBuffer frame) throws IOException {
+        try {
+            onReceiveData(frame);
+        } catch (StreamException e) {
+            Log.debug("Stream error on stream {}: {}", e.streamId, e.errorCode);
+            resetStream(e.streamId, e.errorCode);
+        } catch (ConnectionException e) {
+            Log.warn("Connection error: " + e.errorCode.name());
+            goAway(e.errorCode);
+        } catch (BufferUnderflowException e) {
+            Log.warn("Frame shorter than its type requires, closing connection");
+            goAway(FRAME_SIZE_ERROR);
+        }
     }
 
+    /**
+     * Sends a RST_STREAM frame for a stream error. A stream that is not in the stream map,
+     * such as one that is already closed, is reset without being tracked.
+     *
+     * @param streamId  the stream to reset.
+     * @param errorCode the reason for resetting the stream.
+     * @throws IOException if the connection is closed.
+     */
+    protected void resetStream(int streamId, ErrorCode errorCode) throws IOException {
+        if (streamId == 0) {
+            goAway(errorCode);
+            return;
+        }
+        Stream s = streamMap.get(streamId);
+        if (s == null) {
+            s = new Stream(streamId, root);
+            s.abandon(); // never opened, so never closed either
+            sendFrame(s, new RSTStreamFrame(streamId, errorCode));
+            return;
+        }
+        sendFrame(s, new RSTStreamFrame(streamId, errorCode));
+        s.cancelBody();
+        onStreamError(s, errorCode);
+    }
+
+    /**
+     * Called when a stream has been reset because of a stream error.
+     *
+     * @param s         the stream that was reset.
+     * @param errorCode the error the stream was reset with.
+     */
+    protected void onStreamError(Stream s, ErrorCode errorCode) {
+    }
+
+    /**
+     * Reads the client connection preface and answers with the SETTINGS frame of this connection.
+     * Exactly the preface is read, so frames the client sends right after it are left for the connection thread.
+     *
+     * @throws IOException if the socket is closed.
+     */
     @Override
     public void onFirstRequest() throws IOException {
-        BufferedReader is = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-        String s = is.readLine();
-        if (s == null) return;
-        if (s.equals("PRI * HTTP/2.0")) {
-            System.out.println("Client request for HTTP/2.0");
-            ConnectionSettings cs = ConnectionSettings.getUndefined();
-            sendFrame(new SettingsFrame(0, false, cs));
+        if (readPreface()) {
+            Log.debug("Client request for HTTP/2.0 from {}", socket.getRemoteSocketAddress());
+            sendInitialSettings();
         } else {
             throw HTTP_1_1_REQUIRED.error();
         }
     }
 
+    /**
+     * Reads the client connection preface. If the first bytes are something else, they are left unread.
+     *
+     * @return true if the preface was read.
+     * @throws IOException if the socket is closed.
+     */
+    protected boolean readPreface() throws IOException {
+        InputStream is = input();
+        is.mark(PREFACE.length);
+        byte[] preface = new byte[PREFACE.length];
+        int n = 0;
+        int r;
+        while (n < preface.length && (r = is.read(preface, n, preface.length - n)) >= 0) {
+            n += r;
+        }
+        if (Arrays.equals(preface, PREFACE)) {
+            return true;
+        }
+        is.reset();
+        return false;
+    }
+
+    /**
+     * Returns the input stream of the socket, buffered. Everything read from the socket,
+     * before and after the connection thread has started, must be read through this stream.
+     *
+     * @return the buffered input stream of the socket.
+     * @throws IOException if the socket is closed.
+     */
+    protected synchronized InputStream input() throws IOException {
+        if (input == null) {
+            input = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+        }
+        return input;
+    }
+
+    /**
+     * Creates the thread that reads from the socket once the first request has been handled.
+     *
+     * @return a thread reading frames.
+     */
+    protected Thread newReader() {
+        return new ConnectionThread(this);
+    }
+
     @Override
     public void onReceiveData(ByteBuffer frame) throws IOException {
+        FrameRecorder r = recorder;
+        if (r != null) {
+            r.record(connectionId, true, frame);
+        }
         int next = frame.getInt();
         int length = next >>> 8; // length is only 3 first bytes
-        byte type = (byte) (next & 0xff);
+        int type = next & 0xff;
         byte flags = frame.get();
         int streamId = frame.getInt() & Integer.MAX_VALUE;
         this.idIncrement = streamId + 1;
+        lastRead = System.nanoTime();
+        if (keepAlivePending) {
+            keepAlivePending = false;
+        }
         if (frame.remaining() != length) {
             throw FRAME_SIZE_ERROR.error();
         }
+        FrameType ft = FrameType.from((byte) type);
+        metrics.frameIn(ft, length + 9); // every frame, so the bytes received add up to those read
+        FrameHandler handler = handlers[type];
+        if (handler == null) {
+            return; // unknown frame types must be ignored
+        }
         // remaining bytes in data is payload
-        FrameType ft = FrameType.from(type);
-        // TODO act upon the recieved data
+        if (ft != null) {
+            if (!withinBudget(ft, flags)) {
+                enhanceYourCalm();
+                return;
+            }
+        }
+        handler.onFrame(flags, streamId, frame.slice());
+    }
+
+    /**
+     * Registers a handler for an extension frame type, such as ALTSVC (0xa), ORIGIN (0xc) or PRIORITY_UPDATE (0x10).
+     * Frames of types without a handler are ignored.
+     *
+     * @param type    the frame type, from 0xa to 0xff.
+     * @param handler the handler for frames of this type, or null to ignore them again.
+     */
+    public void registerFrameHandler(int type, FrameHandler handler) {
+        if (type < 0 || type > 0xff || FrameType.from((byte) type) != null) {
+            throw new IllegalArgumentException("Not an extension frame type: " + type);
+        }
+        handlers[type] = handler;
+    }
+
+    private FrameHandler[] defaultHandlers() {
+        FrameHandler[] table = new FrameHandler[256];
+        table[FrameType.DATA.code] = this::receiveData;
+        table[FrameType.HEADERS.code] = this::receiveHeaders;
+        table[FrameType.PRIORITY.code] = (flags, streamId, payload) -> onPriorityFrame(new PriorityFrame(flags, streamId, payload));
+        table[FrameType.RST_STREAM.code] = this::receiveRSTStream;
+        table[FrameType.SETTINGS.code] = this::receiveSettings;
+        table[FrameType.PUSH_PROMISE.code] = (flags, streamId, payload) -> onPushPromiseFrame(new PushPromiseFrame(flags, streamId, payload));
+        table[FrameType.PING.code] = this::receivePing;
+        table[FrameType.GOAWAY.code] = this::receiveGoAway;
+        table[FrameType.WINDOW_UPDATE.code] = this::receiveWindowUpdate;
+        table[FrameType.CONTINUATION.code] = this::receiveContinuation;
+        return table;
+    }
+
+    private void receiveData(byte flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw PROTOCOL_ERROR.error();
+        }
+        DataFrame df = new DataFrame(flags, streamId, payload);
+        if (root.addReceiveWindow(-df.length) < 0) {
+            Log.warn("DATA beyond the receive window of the connection, closing connection");
+            throw FLOW_CONTROL_ERROR.error();
+        }
+        Stream ds = streamMap.get(streamId);
+        if (ds != null) {
+            ds.frameRead();
+            if (ds.getState() != CLOSED && ds.addReceiveWindow(-df.length) < 0) {
+                consumed(null, df.length); // still counted against the window of the connection
+                throw FLOW_CONTROL_ERROR.streamError(streamId);
+            }
+        }
+        onDataFrame(df);
+        if (Flags.isSet(flags, Flags.END_STREAM)) {
+            endRemote(ds);
+        }
+    }
+
+    private void receiveHeaders(byte flags, int streamId, ByteBuffer payload) throws IOException {
+        HeadersFrame hf = new HeadersFrame(flags, streamId, payload, headerDecoder);
+        if (streamId > maxAcceptedStreamId) {
+            return; // after GOAWAY, new streams are ignored
+        }
+        onHeadersFrame(hf);
+        // updated after the handler, so it can tell a new stream id from one already used
+        if (streamId > lastStreamId) {
+            lastStreamId = streamId;
+        }
+        if (Flags.isSet(flags, Flags.END_STREAM)) {
+            endRemote(streamMap.get(streamId));
+        }
+    }
+
+    private void receiveContinuation(byte flags, int streamId, ByteBuffer payload) throws IOException {
+        byte[] fragment = new byte[payload.remaining()];
+        payload.duplicate().get(fragment);
+        // decoded to keep the dynamic table in step with the peer
+        headerDecoder.decode(fragment, Flags.isSet(flags, Flags.END_HEADERS));
+        onContinuationFrame(new ContinuationFrame(flags, streamId, payload));
+    }
+
+    private void receiveRSTStream(byte flags, int streamId, ByteBuffer payload) throws IOException {
+        RSTStreamFrame rsf = new RSTStreamFrame(flags, streamId, payload);
+        metrics.reset(rsf.errorCode, true);
+        onRSTStreamFrame(rsf);
+        Stream rs = streamMap.get(streamId);
+        if (rs != null) {
+            rs.setState(CLOSED);
+            rs.cancelBody();
+            writer.discard(rs); // frames waiting for flow control can no longer be sent
+            release(rs);
+        }
+    }
+
+    private void receiveSettings(byte flags, int streamId, ByteBuffer payload) throws IOException {
+        SettingsFrame sf = new SettingsFrame(flags, streamId, payload);
+        if (!Flags.isSet(sf.flags, Flags.ACK)) {
+            applySettings(sf.settings);
+        } else {
+            ConnectionSettings acked = settingsInFlight.poll();
+            if (acked != null) {
+                ConnectionSettings snapshot = acknowledgedSettings.copy();
+                snapshot.setSettings(acked);
+                acknowledgedSettings = snapshot;
+                headerDecoder.setDecoderTableSize(acknowledgedValueOf(Setting.SETTINGS_HEADER_TABLE_SIZE));
+                lowerReceiveWindows();
+            }
+            settingsAcked++;
+        }
+        onSettingsFrame(sf);
+    }
+
+    private void receivePing(byte flags, int streamId, ByteBuffer payload) throws IOException {
+        PingFrame pif = new PingFrame(flags, streamId, payload);
+        if (draining && Flags.isSet(flags, Flags.ACK) && pif.length == 8 && pif.opaqueData.getLong(0) == drainPingData) {
+            finishDrain();
+        }
+        onPingFrame(pif);
+    }
+
+    private void receiveGoAway(byte flags, int streamId, ByteBuffer payload) throws IOException {
+        GoAwayFrame gaf = new GoAwayFrame(flags, streamId, payload);
+        metrics.goAway(gaf.errorCode, true);
+        onGoAwayFrame(gaf);
+    }
+
+    private void receiveWindowUpdate(byte flags, int streamId, ByteBuffer payload) throws IOException {
+        WindowUpdateFrame wuf = new WindowUpdateFrame(flags, streamId, payload);
+        if (wuf.windowSizeIncrement == 0) {
+            throw streamId == 0 ? PROTOCOL_ERROR.error() : PROTOCOL_ERROR.streamError(streamId);
+        }
+        Stream ws = streamMap.get(streamId);
+        if (ws != null) {
+            if ((long) ws.getSendWindow() + wuf.windowSizeIncrement > Integer.MAX_VALUE) {
+                throw streamId == 0 ? FLOW_CONTROL_ERROR.error() : FLOW_CONTROL_ERROR.streamError(streamId);
+            }
+            ws.addSendWindow(wuf.windowSizeIncrement);
+            writer.wakeUp();
+        }
+        onWindowUpdateFrame(wuf);
+    }
+
+    /**
+     * Checks that a received frame is within the budgets of this connection. PING and SETTINGS frames
+     * that are not acknowledgements, and PRIORITY frames, take from the control frame budget,
+     * while RST_STREAM frames take from the reset budget. A peer that does not read the
+     * responses to its frames is over budget once too many control frames are waiting to be written.
+     *
+     * @param ft    the type of the received frame.
+     * @param flags the flags of the received frame.
+     * @return false if the peer has exceeded a budget.
+     */
+    private boolean withinBudget(FrameType ft, byte flags) {
+        if (writer.queuedControlFrames() > maxQueuedControlFrames) {
+            return false;
+        }
         switch (ft) {
-            case DATA:
-                DataFrame df = new DataFrame(flags, streamId, frame.slice());
-                onDataFrame(df);
-                break;
-            case HEADERS:
-                HeadersFrame hf = new HeadersFrame(flags, streamId, frame.slice());
-                onHeadersFrame(hf);
-                break;
+            case PING:
+            case SETTINGS:
+                return Flags.isSet(flags, Flags.ACK) || controlFrameBudget.tryTake();
             case PRIORITY:
-                PriorityFrame prf = new PriorityFrame(flags, streamId, frame.slice());
-                onPriorityFrame(prf);
-                break;
+                return controlFrameBudget.tryTake();
             case RST_STREAM:
-                RSTStreamFrame rsf = new RSTStreamFrame(flags, streamId, frame.slice());
-                onRSTStreamFrame(rsf);
-                break;
-            case SETTINGS:
-                SettingsFrame sf = new SettingsFrame(flags, streamId, frame.slice());
-                onSettingsFrame(sf);
-                break;
-            case PUSH_PROMISE:
-                PushPromiseFrame ppf = new PushPromiseFrame(flags, streamId, frame.slice());
-                onPushPromiseFrame(ppf);
-                break;
-            case PING:
-                PingFrame pif = new PingFrame(flags, streamId, frame.slice());
-                onPingFrame(pif);
-                break;
-            case GOAWAY:
-                GoAwayFrame gaf = new GoAwayFrame(flags, streamId, frame.slice());
-                onGoAwayFrame(gaf);
-                break;
-            case WINDOW_UPDATE:
-                WindowUpdateFrame wuf = new WindowUpdateFrame(flags, streamId, frame.slice());
-                onWindowUpdateFrame(wuf);
-                break;
-            case CONTINUATION:
-                ContinuationFrame cf = new ContinuationFrame(flags, streamId, frame.slice());
-                onContinuationFrame(cf);
-                break;
+                return resetBudget.tryTake();
+            default:
+                return true;
         }
     }
 
+    /**
+     * Closes the connection with a GOAWAY frame of type ENHANCE_YOUR_CALM,
+     * for a peer that has exceeded the budgets of the connection.
+     *
+     * @throws IOException if the connection is already closed.
+     */
+    protected void enhanceYourCalm() throws IOException {
+        Log.warn("Peer exceeded frame budget, closing connection");
+        sendFrame(root, new GoAwayFrame(0, lastStreamId, ErrorCode.ENHANCE_YOUR_CALM, ByteBuffer.allocate(0)));
+        close();
+    }
+
     /**
      * Adds the specified stream to the stream map.
      *
@@ -128,16 +520,341 @@ public abstract class AbstractConnection implements ConnectionInterface {
      * @return s.
      */
     public Stream addStream(Stream s) {
+        if (s.streamId != 0) {
+            s.setSendWindow(settings.valueOf(SETTINGS_INITIAL_WINDOW_SIZE));
+            s.setReceiveWindow(receiveInitialWindow);
+        }
         streamMap.put(s.streamId, s);
+        if (s.streamId != 0) {
+            metrics.streamOpened();
+            long delay = Math.min(positive(streamReadTimeoutMillis), positive(streamWriteTimeoutMillis));
+            if (delay != Long.MAX_VALUE) {
+                scheduleStreamCheck(s, delay);
+            }
+        }
         return s;
     }
 
+    private static long positive(long timeoutMillis) {
+        return timeoutMillis > 0 ? timeoutMillis : Long.MAX_VALUE;
+    }
+
+    /**
+     * Checks the idle and keepalive deadlines of the connection. Runs on the timer thread.
+     */
+    private void checkConnection() {
+        if (isClosed()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        if (idleTimeoutMillis > 0) {
+            long idle = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+            if (streamMap.size() > 1) {
+                next = idle;
+            } else if (now - lastActive >= idle) {
+                Log.info("Connection idle, closing connection");
+                goAway(ErrorCode.NO_ERROR);
+                return;
+            } else {
+                next = idle - (now - lastActive);
+            }
+        }
+        if (keepAliveMillis > 0) {
+            long keepAlive = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+            long quiet = now - lastRead;
+            if (keepAlivePending && quiet >= 2 * keepAlive) {
+                Log.warn("Peer did not answer keepalive PING, closing connection");
+                close();
+                return;
+            }
+            if (!keepAlivePending && quiet >= keepAlive) {
+                keepAlivePending = true;
+                try {
+                    sendFrame(root, new PingFrame(0));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+            next = Math.min(next, (keepAlivePending ? 2 * keepAlive : keepAlive) - quiet);
+        }
+        if (next != Long.MAX_VALUE) {
+            connectionTimeout = timer.schedule(this::checkConnection, TimeUnit.NANOSECONDS.toMillis(next) + 1);
+        }
+    }
+
+    private void scheduleStreamCheck(Stream s, long delayMillis) {
+        TimerWheel.Timeout t = timer.schedule(() -> checkStream(s), delayMillis);
+        streamTimeouts.put(s.streamId, t);
+        if (streamMap.get(s.streamId) != s && streamTimeouts.remove(s.streamId, t)) {
+            t.cancel(); // closed meanwhile
+        }
+    }
+
+    /**
+     * Checks the read and write deadlines of a stream. Runs on the timer thread.
+     *
+     * @param s the stream to check.
+     */
+    private void checkStream(Stream s) {
+        if (isClosed() || streamMap.get(s.streamId) != s) {
+            streamTimeouts.remove(s.streamId);
+            return;
+        }
+        long now = System.nanoTime();
+        StreamState ss = s.getState();
+        long readLeft = Long.MAX_VALUE;
+        long writeLeft = Long.MAX_VALUE;
+        if (streamReadTimeoutMillis > 0 && (ss == OPEN || ss == HALF_CLOSED_LOCAL)) {
+            readLeft = TimeUnit.MILLISECONDS.toNanos(streamReadTimeoutMillis) - (now - s.getLastRead());
+        }
+        if (streamWriteTimeoutMillis > 0 && s.getQueuedFrames() > 0) {
+            writeLeft = TimeUnit.MILLISECONDS.toNanos(streamWriteTimeoutMillis) - (now - s.getLastWritten());
+        }
+        if (readLeft <= 0 || writeLeft <= 0) {
+            streamTimeouts.remove(s.streamId);
+            try {
+                sendFrame(s, new RSTStreamFrame(s.streamId, ErrorCode.CANCEL));
+            } catch (IOException ignored) {
+            }
+            s.cancelBody();
+            onStreamTimeout(s);
+            return;
+        }
+        long next = Math.min(readLeft, writeLeft);
+        if (next == Long.MAX_VALUE) {
+            // waiting for the application, check again later
+            scheduleStreamCheck(s, Math.min(positive(streamReadTimeoutMillis), positive(streamWriteTimeoutMillis)));
+        } else {
+            scheduleStreamCheck(s, TimeUnit.NANOSECONDS.toMillis(next) + 1);
+        }
+    }
+
+    /**
+     * Called when a stream has been reset because it timed out.
+     *
+     * @param s the stream that timed out.
+     */
+    protected void onStreamTimeout(Stream s) {
+    }
+
+    /**
+     * Sends a SETTINGS frame, and closes the connection with SETTINGS_TIMEOUT
+     * if the peer has not acknowledged it in time.
+     *
+     * @param newSettings the settings to send.
+     * @throws IOException if the connection is closed.
+     */
+    protected void sendSettings(ConnectionSettings newSettings) throws IOException {
+        int sequence = settingsSent.incrementAndGet();
+        settingsInFlight.add(newSettings.copy());
+        int window = newSettings.valueOf(SETTINGS_INITIAL_WINDOW_SIZE);
+        if (window != ConnectionSettings.UNDEFINED && window > receiveInitialWindow) {
+            // the peer may use a larger window as soon as it has read the SETTINGS
+            addReceiveWindows(window - receiveInitialWindow);
+            receiveInitialWindow = window;
+        }
+        sendFrame(root, new SettingsFrame(0, false, newSettings));
+        if (settingsTimeoutMillis > 0) {
+            timer.schedule(() -> {
+                if (settingsAcked < sequence && !isClosed()) {
+                    Log.warn("SETTINGS not acknowledged, closing connection");
+                    goAway(SETTINGS_TIMEOUT);
+                }
+            }, settingsTimeoutMillis);
+        }
+    }
+
+    /**
+     * Lowers the receive windows of the streams once a smaller SETTINGS_INITIAL_WINDOW_SIZE has been acknowledged,
+     * unless a larger value is still in flight, which the peer may already be using.
+     */
+    private void lowerReceiveWindows() {
+        int window = acknowledgedValueOf(SETTINGS_INITIAL_WINDOW_SIZE);
+        for (ConnectionSettings inFlight : settingsInFlight) {
+            int value = inFlight.valueOf(SETTINGS_INITIAL_WINDOW_SIZE);
+            if (value != ConnectionSettings.UNDEFINED) {
+                window = Math.max(window, value);
+            }
+        }
+        if (window < receiveInitialWindow) {
+            addReceiveWindows(window - receiveInitialWindow);
+            receiveInitialWindow = window;
+        }
+    }
+
+    private void addReceiveWindows(int delta) {
+        for (Stream s : streamMap.values()) {
+            if (s.streamId != 0) {
+                s.addReceiveWindow(delta);
+            }
+        }
+    }
+
+    /**
+     * Sends the first SETTINGS frame of the connection, with all local settings, and raises the receive window
+     * of the connection if it is larger than the default.
+     *
+     * @throws IOException if the connection is closed.
+     */
+    protected void sendInitialSettings() throws IOException {
+        sendSettings(localSettings.copy());
+        int increment = connectionWindowSize - SETTINGS_INITIAL_WINDOW_SIZE.defaultValue;
+        if (increment > 0) {
+            root.addReceiveWindow(increment);
+            sendFrame(root, new WindowUpdateFrame(0, increment));
+        }
+    }
+
+    /**
+     * Sends a GOAWAY frame with the last stream id received, and closes the connection.
+     *
+     * @param errorCode the reason for closing the connection.
+     */
+    protected void goAway(ErrorCode errorCode) {
+        try {
+            sendFrame(root, new GoAwayFrame(0, lastStreamId, errorCode, ByteBuffer.allocate(0)));
+        } catch (IOException ignored) {
+        }
+        close();
+    }
+
+    /**
+     * Changes a setting advertised to the peer. Once the connection has started,
+     * the new value is sent to the peer in a SETTINGS frame of its own.
+     *
+     * @param setting the setting to change.
+     * @param value   the new value of the setting.
+     * @throws IOException if the connection is closed.
+     */
+    public void setLocalSetting(Setting setting, int value) throws IOException {
+        localSettings.setValue(setting, value);
+        if (thread != null) {
+            ConnectionSettings changed = ConnectionSettings.getUndefined();
+            changed.setValue(setting, value);
+            sendSettings(changed);
+        }
+    }
+
+    /**
+     * Changes the local settings to those of a profile, and the receive window of the connection to its size.
+     * Once the connection has started, the settings are sent to the peer in a SETTINGS frame of their own,
+     * and take effect when the peer acknowledges them. The receive window of the connection is only ever raised,
+     * since window given to the peer cannot be taken back.
+     *
+     * @param profile the profile to use.
+     * @throws IOException if the connection is closed.
+     */
+    public void setSettingsProfile(SettingsProfile profile) throws IOException {
+        ConnectionSettings changed = profile.settings();
+        localSettings.setSettings(changed);
+        int increment = profile.connectionWindowSize - connectionWindowSize;
+        if (increment > 0) {
+            connectionWindowSize = profile.connectionWindowSize;
+        }
+        if (thread != null) {
+            sendSettings(changed);
+            if (increment > 0) {
+                root.addReceiveWindow(increment);
+                sendFrame(root, new WindowUpdateFrame(0, increment));
+            }
+        }
+    }
+
+    /**
+     * Finds the value of a setting advertised to the peer.
+     *
+     * @param setting the setting to find the value of.
+     * @return the advertised value, or the default value if it has not been advertised.
+     */
+    public int localValueOf(Setting setting) {
+        int value = localSettings.valueOf(setting);
+        return value == ConnectionSettings.UNDEFINED ? setting.defaultValue : value;
+    }
+
+    /**
+     * Finds the value of a local setting the peer has acknowledged, which is the value received frames
+     * are held to. Until the peer acknowledges a change, this is the value before it.
+     *
+     * @param setting the setting to find the value of.
+     * @return the acknowledged value, or the default value if none has been acknowledged.
+     */
+    public int acknowledgedValueOf(Setting setting) {
+        int value = acknowledgedSettings.valueOf(setting);
+        return value == ConnectionSettings.UNDEFINED ? setting.defaultValue : value;
+    }
+
+    /**
+     * Gives window back to the peer for received data that has been consumed.
+     * The stream window is updated at once, while the connection window is updated
+     * once half of the receive window of the connection has been consumed.
+     *
+     * @param stream the stream the data was received on, or null if it has none.
+     * @param n      the number of consumed bytes.
+     */
+    protected void consumed(Stream stream, int n) {
+        if (n <= 0) {
+            return;
+        }
+        try {
+            StreamState ss = stream == null ? CLOSED : stream.getState();
+            if (ss == OPEN || ss == HALF_CLOSED_LOCAL) {
+                stream.addReceiveWindow(n);
+                sendFrame(stream, new WindowUpdateFrame(stream.streamId, n));
+            }
+            int threshold = connectionWindowSize / 2;
+            if (unacknowledged.addAndGet(n) >= threshold) {
+                int increment = unacknowledged.getAndSet(0);
+                if (increment > 0) {
+                    root.addReceiveWindow(increment);
+                    sendFrame(root, new WindowUpdateFrame(0, increment));
+                }
+            }
+        } catch (IOException e) {
+            if (!isClosed()) {
+                Log.warn("Could not send WINDOW_UPDATE", e);
+            }
+        }
+    }
+
+    /**
+     * Applies settings received from the peer, by publishing a new snapshot of the peer settings.
+     * A changed SETTINGS_INITIAL_WINDOW_SIZE adjusts the send window of every stream by the difference.
+     *
+     * @param newSettings the settings received from the peer.
+     * @throws ConnectionException FLOW_CONTROL_ERROR if the window is larger than 2^31-1,
+     *                             or would grow the send window of a stream beyond it.
+     */
+    protected void applySettings(ConnectionSettings newSettings) {
+        int window = newSettings.valueOf(SETTINGS_INITIAL_WINDOW_SIZE);
+        if (window != ConnectionSettings.UNDEFINED) {
+            if (window < 0) {
+                throw FLOW_CONTROL_ERROR.error(); // above 2^31-1 as an unsigned value
+            }
+            int delta = window - settings.valueOf(SETTINGS_INITIAL_WINDOW_SIZE);
+            for (Stream s : streamMap.values()) {
+                if (s.streamId != 0 && (long) s.getSendWindow() + delta > Integer.MAX_VALUE) {
+                    throw FLOW_CONTROL_ERROR.error();
+                }
+            }
+            for (Stream s : streamMap.values()) {
+                if (s.streamId != 0) {
+                    s.addSendWindow(delta);
+                }
+            }
+        }
+        ConnectionSettings snapshot = settings.copy();
+        snapshot.setSettings(newSettings);
+        settings = snapshot;
+        writer.wakeUp();
+    }
+
 
     private boolean isAllowed(Stream s, Frame f) {
         StreamState ss = s.getState();
         switch (f.type) {
             case DATA:
-                return s.streamId != 0 && (ss == OPEN || ss == HALF_CLOSED_LOCAL);
+                return s.streamId != 0 && (ss == OPEN || ss == HALF_CLOSED_REMOTE);
             case HEADERS:
                 return s.streamId != 0 && (ss == IDLE || ss == RESERVED_LOCAL || ss == OPEN || ss == HALF_CLOSED_REMOTE);
             case PRIORITY:
@@ -150,7 +867,7 @@ public abstract class AbstractConnection implements ConnectionInterface {
             case GOAWAY:
                 return s.streamId == 0;
             case PUSH_PROMISE:
-                return settings.valueOf(Setting.SETTINGS_ENABLE_PUSH) != 0 && s.streamId != 0 && (ss == OPEN || ss == HALF_CLOSED_LOCAL);
+                return settings.valueOf(Setting.SETTINGS_ENABLE_PUSH) != 0 && s.streamId != 0 && (ss == OPEN || ss == HALF_CLOSED_REMOTE);
             case WINDOW_UPDATE:
                 return true;
             default:
@@ -171,6 +888,8 @@ public abstract class AbstractConnection implements ConnectionInterface {
 
     /**
      * Sends a frame with the stream id specified in the frame.
+     * This only queues the frame, so it may be called from any thread.
+     * Frames are written in order by a single writer, with DATA frames held back by flow control.
      *
      * @param f The frame to send.
      * @param s The stream to send this frame with.
@@ -178,40 +897,197 @@ public abstract class AbstractConnection implements ConnectionInterface {
      * @throws IOException If there is an error sending the frame.
      */
     public boolean sendFrame(Stream s, Frame f) throws IOException {
-        // TODO connection should figure out which frame to send with on its own (flow control)
-        if (isAllowed(s, f)) {
+        if (s != null && isAllowed(s, f)) {
             f.streamId = s.streamId;
-            ByteBuffer frame = f.bytes();
-            byte[] b = new byte[frame.remaining()];
-            for (int i = 0; i < b.length; i++) {
-                b[i] = frame.get();
+            s.frameQueued();
+            writer.enqueue(s, f);
+            if (f.type == FrameType.RST_STREAM) {
+                s.setState(CLOSED);
+            } else if (f.type == FrameType.HEADERS) {
+                s.headersSent();
+            }
+            if ((f.type == FrameType.DATA || f.type == FrameType.HEADERS) && Flags.isSet(f.flags, Flags.END_STREAM)) {
+                s.endLocal();
             }
+            if (s.getState() == CLOSED) {
+                release(s); // in case the writer was faster
+            }
+            return true;
+        }
+        return false;
+    }
 
+    private void endRemote(Stream s) {
+        if (s != null && s.endRemote() == CLOSED) {
+            release(s);
+        }
+    }
 
-            if (f.type == FrameType.HEADERS) {
-                HeadersFrame hf = (HeadersFrame) f;
-                byte[] bytes = new byte[b.length - 9 - 4 - 1];
+    /**
+     * Calls {@link #onStreamEnded(Stream)} once the stream is closed, and {@link #onStreamClosed(Stream)} once
+     * all its frames have been written as well.
+     *
+     * @param s the stream to release.
+     */
+    void release(Stream s) {
+        if (s.streamId == 0) {
+            return;
+        }
+        if (s.getState() == CLOSED && s.markEnded()) {
+            onStreamEnded(s);
+        }
+        if (s.release()) {
+            onStreamClosed(s);
+        }
+    }
 
-                System.arraycopy(b, 9 + 4 + 1, bytes, 0, bytes.length);
+    /**
+     * Called once when a stream has become closed, or its connection is closed, possibly before all its frames
+     * have been written. From then on the peer may open another stream in its place.
+     *
+     * @param s the ended stream.
+     */
+    protected void onStreamEnded(Stream s) {
+    }
 
-//                System.out.println(Arrays.toString(b));
-//                System.out.println(Arrays.toString(bytes));
+    /**
+     * Called once when a stream has become closed, by END_STREAM flags in both directions or a RST_STREAM frame,
+     * and all its frames have been written. Removes the stream from the stream map.
+     *
+     * @param s the closed stream.
+     */
+    protected void onStreamClosed(Stream s) {
+        s.cancelBody();
+        streamMap.remove(s.streamId);
+        TimerWheel.Timeout t = streamTimeouts.remove(s.streamId);
+        if (t != null) {
+            t.cancel();
+        }
+        lastActive = System.nanoTime();
+        metrics.streamClosed();
+        closeIfDrained();
+    }
 
-//                System.out.println(decompress(bytes));
+    /**
+     * Starts closing the connection gracefully. A GOAWAY frame with the largest possible last stream id
+     * tells the peer to stop opening streams, and is followed by a PING. Once the PING is acknowledged,
+     * any streams the peer opened meanwhile have arrived, so a final GOAWAY with the real last stream id
+     * is sent. The connection closes when all streams up to that id are closed.
+     *
+     * @throws IOException if the connection is closed.
+     */
+    public void drain() throws IOException {
+        PingFrame ping = new PingFrame(0);
+        drainPingData = ping.opaqueData.getLong(0);
+        draining = true;
+        sendFrame(root, new GoAwayFrame(0, Integer.MAX_VALUE, ErrorCode.NO_ERROR, ByteBuffer.allocate(0)));
+        sendFrame(root, ping);
+    }
+
+    private void finishDrain() throws IOException {
+        draining = false;
+        maxAcceptedStreamId = lastStreamId;
+        sendFrame(root, new GoAwayFrame(0, lastStreamId, ErrorCode.NO_ERROR, ByteBuffer.allocate(0)));
+        closeIfDrained();
+    }
+
+    private void closeIfDrained() {
+        if (maxAcceptedStreamId != Integer.MAX_VALUE && streamMap.size() <= 1) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection. Frames already sent are written before the socket is closed,
+     * except DATA frames still waiting for flow control, and the socket is closed after {@link #closeGraceMillis}
+     * even if they have not been, which also ends a read blocked on it. Open streams are closed at once,
+     * failing their request bodies and pending responses, and the close listeners are called.
+     * <p>
+     * The connection also closes itself when the peer closes the socket or it cannot be read.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+        writer.close();
+        if (writer.getState() == Thread.State.NEW || closeGraceMillis <= 0) {
+            closeSocket();
+        } else {
+            // the writer closes the socket once its frames are written, unless a peer that stopped reading blocks it
+            timer.schedule(this::closeSocket, closeGraceMillis);
+        }
+        TimerWheel.Timeout t = connectionTimeout;
+        if (t != null) {
+            t.cancel();
+        }
+        for (TimerWheel.Timeout st : streamTimeouts.values()) {
+            st.cancel();
+        }
+        streamTimeouts.clear();
+        for (Stream s : streamMap.values()) {
+            if (s.streamId != 0 && s.abandon()) {
+                if (s.markEnded()) {
+                    onStreamEnded(s);
+                }
+                onStreamClosed(s);
             }
+        }
+        metrics.connectionClosed();
+        closedLatch.countDown();
+        List<Runnable> listeners;
+        synchronized (closeListeners) {
+            listeners = new ArrayList<>(closeListeners);
+            closeListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
 
-//            System.out.println(Arrays.toString(b));
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.debug("Could not close socket: {}", e);
+        }
+    }
 
+    /**
+     * @return true if the connection has been closed.
+     */
+    public boolean isClosed() {
+        return closed.get();
+    }
 
-            socket.getOutputStream().write(b);
-            socket.getOutputStream().flush();
-//            while (frame.hasRemaining()) {
-//                socket.getOutputStream().write(frame.get());
-//            }
-            System.out.println("Send: " + f);
-            return true;
+    /**
+     * Waits for the connection to close.
+     *
+     * @param timeoutMillis the longest time to wait, in milliseconds.
+     * @return true if the connection is closed.
+     */
+    public boolean awaitClosed(long timeoutMillis) {
+        try {
+            return closedLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return isClosed();
         }
-        return false;
+    }
+
+    /**
+     * @param listener called once when the connection is closed.
+     */
+    public void addCloseListener(Runnable listener) {
+        synchronized (closeListeners) {
+            if (!isClosed()) {
+                closeListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
     }
 
     /**
@@ -238,6 +1114,20 @@ public abstract class AbstractConnection implements ConnectionInterface {
         }
     }
 
+    /**
+     * @param recorder records the frames received and written on this connection from now on, or null to stop.
+     */
+    public void setRecorder(FrameRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * @return the metrics of this connection, which also count into {@link Metrics#global()}.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public Socket getSocket() {
         return socket;
     }
@@ -0,0 +1,359 @@
+package connections;
+
+import frames.*;
+import handlers.Request;
+import handlers.RequestBody;
+import handlers.Response;
+import logging.Log;
+import streams.Stream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static frames.Setting.SETTINGS_ENABLE_PUSH;
+import static frames.Setting.SETTINGS_MAX_CONCURRENT_STREAMS;
+
+/**
+ * A client connection that sends requests and completes a future with each response.
+ * <p>
+ * The connection sends the connection preface and its SETTINGS when started, and opens streams with odd ids
+ * in increasing order. Requests may be sent from any thread with {@link #send(Request)}. Request bodies are
+ * subscribed to and sent as the send windows allow, while response bodies are collected in memory, giving window
+ * back to the server as they arrive. Futures are completed on the executor, never on the connection thread.
+ * <p>
+ * Server push is disabled. Once the server sends GOAWAY, no new streams are opened, requests on streams the server
+ * did not process fail, and the connection closes when its last stream closes.
+ */
+public class ClientConnection extends AbstractConnection {
+
+    protected final Executor executor;
+    private final Map<Integer, Exchange> exchanges = new ConcurrentHashMap<>();
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final Object openLock = new Object();
+    private int nextStreamId = 1;
+    private volatile boolean goingAway = false;
+    private volatile boolean settingsReceived = false;
+    private volatile Runnable streamListener;
+
+    /**
+     * Creates a client connection. Nothing is sent before {@link #start()} is called.
+     *
+     * @param socket   the socket connected to the server.
+     * @param executor the executor to complete response futures and read request bodies on.
+     */
+    public ClientConnection(Socket socket, Executor executor) {
+        super(socket);
+        this.executor = executor;
+        localSettings.setSettings(SettingsProfile.DEFAULT.settings());
+        localSettings.setValue(SETTINGS_ENABLE_PUSH, 0);
+    }
+
+    /**
+     * Sends the connection preface, followed by the SETTINGS frame of this connection.
+     *
+     * @throws IOException if the socket is closed.
+     */
+    @Override
+    public void onFirstRequest() throws IOException {
+        // nothing has been queued yet, so the preface is written before any frame
+        OutputStream os = socket.getOutputStream();
+        os.write(PREFACE);
+        os.flush();
+        sendInitialSettings();
+    }
+
+    /**
+     * Sends a request on a new stream. The request needs the :method, :scheme, :authority and :path pseudo-headers.
+     * A request body that is null or an empty {@link RequestBody} is not sent.
+     * <p>
+     * Streams beyond the SETTINGS_MAX_CONCURRENT_STREAMS of the server are refused by it,
+     * so callers sending many requests should use a {@link ConnectionPool}.
+     *
+     * @param request the request to send.
+     * @return a future completed with the response and its whole body, or completed exceptionally
+     * with an {@link IOException} if the stream is reset, times out or the connection closes.
+     */
+    public CompletableFuture<Response> send(Request request) {
+        reserved.incrementAndGet();
+        return open(request);
+    }
+
+    /**
+     * Reserves a stream for {@link #sendReserved(Request)}, if the server allows another one.
+     *
+     * Until the first SETTINGS frame of the server has arrived, its limit on streams is not known, so only one
+     * stream is reserved.
+     *
+     * @return false if the connection is closing or already has as many streams as the server allows.
+     */
+    boolean tryReserve() {
+        while (true) {
+            int n = reserved.get();
+            int max = settingsReceived ? settings.valueOf(SETTINGS_MAX_CONCURRENT_STREAMS) : 1;
+            if (goingAway || isClosed() || n >= max) {
+                return false;
+            }
+            if (reserved.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sends a request on a stream reserved with {@link #tryReserve()}.
+     *
+     * @param request the request to send.
+     * @return a future completed with the response.
+     */
+    CompletableFuture<Response> sendReserved(Request request) {
+        return open(request);
+    }
+
+    private CompletableFuture<Response> open(Request request) {
+        Flow.Publisher<ByteBuffer> body = request.body();
+        boolean hasBody = body != null && !(body instanceof RequestBody && ((RequestBody) body).isEmpty());
+        Exchange exchange = new Exchange();
+        Stream stream = null;
+        // stream ids must be sent in increasing order
+        synchronized (openLock) {
+            if (!goingAway && !isClosed() && nextStreamId > 0) {
+                stream = new Stream(nextStreamId, root);
+                nextStreamId += 2;
+                exchanges.put(stream.streamId, exchange);
+                addStream(stream);
+                try {
+                    sendFrame(stream, new HeadersFrame(stream.streamId, !hasBody, true, (short) 0, request.headerBlock()));
+                } catch (IOException e) {
+                    exchange.error = e;
+                }
+            }
+        }
+        if (stream == null) {
+            exchange.result.completeExceptionally(new IOException("Connection is closed"));
+            streamReleased();
+            return exchange.result;
+        }
+        if (exchange.error != null) {
+            if (stream.abandon()) {
+                onStreamClosed(stream);
+            }
+            return exchange.result;
+        }
+        if (hasBody) {
+            body.subscribe(new ResponseSubscriber(this, stream, executor));
+        }
+        return exchange.result;
+    }
+
+    /**
+     * @param listener called whenever a stream of this connection closes or the server changes its settings,
+     *                 which may allow another stream to be opened, or null.
+     */
+    void setStreamListener(Runnable listener) {
+        this.streamListener = listener;
+    }
+
+    /**
+     * @return true if the server has sent GOAWAY or the connection is closed, so no more streams can be opened.
+     */
+    public boolean isGoingAway() {
+        return goingAway || isClosed();
+    }
+
+    /**
+     * @return the number of streams that are open or reserved.
+     */
+    public int getActiveStreams() {
+        return reserved.get();
+    }
+
+    private void streamReleased() {
+        reserved.decrementAndGet();
+        Runnable listener = streamListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    @Override
+    protected void onStreamClosed(Stream s) {
+        super.onStreamClosed(s);
+        Exchange exchange = exchanges.remove(s.streamId);
+        if (exchange == null) {
+            return;
+        }
+        if (exchange.error == null && exchange.ended && exchange.response != null) {
+            Response response = exchange.response.body(ByteBuffer.wrap(exchange.body.toByteArray()));
+            executor.execute(() -> exchange.result.complete(response));
+        } else {
+            IOException error = exchange.error != null ? exchange.error : new IOException("Connection closed");
+            executor.execute(() -> exchange.result.completeExceptionally(error));
+        }
+        streamReleased();
+        if (goingAway && streamMap.size() <= 1) {
+            close();
+        }
+    }
+
+    @Override
+    public void onHeadersFrame(HeadersFrame hf) throws IOException {
+        Log.debug("Recv: {}", hf);
+        Exchange exchange = exchanges.get(hf.streamId);
+        if (exchange == null) {
+            return;
+        }
+        if (exchange.response == null) {
+            Response response = Response.parse(hf.headerBlockFragment);
+            if (response.status >= 100 && response.status < 200) {
+                return; // informational, the final response follows
+            }
+            if (response.status < 100) {
+                exchange.error = new IOException("Response without a valid :status");
+                sendFrame(streamMap.get(hf.streamId), new RSTStreamFrame(hf.streamId, ErrorCode.PROTOCOL_ERROR));
+                return;
+            }
+            exchange.response = response;
+        }
+        if (Flags.isSet(hf.flags, Flags.END_STREAM)) {
+            exchange.ended = true;
+        }
+    }
+
+    @Override
+    public void onDataFrame(DataFrame df) {
+        Log.debug("Recv: {}", df);
+        Exchange exchange = exchanges.get(df.streamId);
+        Stream stream = streamMap.get(df.streamId);
+        boolean endStream = Flags.isSet(df.flags, Flags.END_STREAM);
+        // the whole body is kept in memory, so all data is consumed at once
+        consumed(endStream ? null : stream, df.length);
+        if (exchange == null) {
+            return;
+        }
+        ByteBuffer data = df.data();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        exchange.body.write(bytes, 0, bytes.length);
+        if (endStream) {
+            exchange.ended = true;
+        }
+    }
+
+    @Override
+    public void onPriorityFrame(PriorityFrame pf) {
+        Log.debug("Recv: {}", pf);
+    }
+
+    @Override
+    public void onRSTStreamFrame(RSTStreamFrame rsf) {
+        Log.debug("Recv: {}", rsf);
+        Exchange exchange = exchanges.get(rsf.streamId);
+        if (exchange != null && exchange.ended && rsf.errorCode == ErrorCode.NO_ERROR) {
+            return; // the whole response has arrived, and the server only asks to stop sending the request body
+        }
+        if (exchange != null && exchange.error == null) {
+            exchange.error = new IOException("Stream reset: " + rsf.errorCode.name());
+        }
+    }
+
+    @Override
+    public void onSettingsFrame(SettingsFrame sf) throws IOException {
+        Log.debug("Recv: {}", sf);
+        if (!Flags.isSet(sf.flags, Flags.ACK)) {
+            sendFrame(root, new SettingsFrame(0, true, ConnectionSettings.getUndefined()));
+            settingsReceived = true;
+            Runnable listener = streamListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    @Override
+    protected void onStreamTimeout(Stream s) {
+        Exchange exchange = exchanges.get(s.streamId);
+        if (exchange != null && exchange.error == null) {
+            exchange.error = new IOException("Stream timed out");
+        }
+    }
+
+    @Override
+    protected void onStreamError(Stream s, ErrorCode errorCode) {
+        Exchange exchange = exchanges.get(s.streamId);
+        if (exchange != null && exchange.error == null) {
+            exchange.error = new IOException("Stream error: " + errorCode.name());
+        }
+    }
+
+    @Override
+    public void onPushPromiseFrame(PushPromiseFrame ppf) throws IOException {
+        Log.debug("Recv: {}", ppf);
+        // push is disabled, so a promise is a protocol error
+        goAway(ErrorCode.PROTOCOL_ERROR);
+    }
+
+    @Override
+    public void onPingFrame(PingFrame pf) throws IOException {
+        Log.debug("Recv: {}", pf);
+        if (!Flags.isSet(pf.flags, Flags.ACK)) {
+            sendFrame(root, new PingFrame(0, true, pf.opaqueData));
+        }
+    }
+
+    @Override
+    public void onGoAwayFrame(GoAwayFrame gaf) {
+        Log.debug("Recv: {}", gaf);
+        synchronized (openLock) {
+            goingAway = true;
+        }
+        for (Stream s : streamMap.values()) {
+            if (s.streamId > gaf.lastStreamId) {
+                // the server did not process the stream, so the request may be retried elsewhere
+                Exchange exchange = exchanges.get(s.streamId);
+                if (exchange != null && exchange.error == null) {
+                    exchange.error = new IOException("Stream not processed before GOAWAY: " + gaf.errorCode.name());
+                }
+                if (s.abandon()) {
+                    onStreamClosed(s);
+                }
+            }
+        }
+        if (streamMap.size() <= 1) {
+            close();
+        }
+        Runnable listener = streamListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public void onWindowUpdateFrame(WindowUpdateFrame wuf) {
+        Log.debug("Recv: {}", wuf);
+    }
+
+    @Override
+    public void onContinuationFrame(ContinuationFrame cf) {
+        Log.debug("Recv: {}", cf);
+    }
+
+    /**
+     * A request waiting for its response. Only changed by the connection thread, except when it is opened.
+     */
+    private static class Exchange {
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        volatile Response response;
+        volatile IOException error;
+        volatile boolean ended = false;
+    }
+}
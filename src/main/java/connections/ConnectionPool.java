@@ -0,0 +1,220 @@
+package connections;
+
+import handlers.Request;
+import handlers.Response;
+import logging.Log;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A pool of client connections to one server, which multiplexes requests over as few connections as possible.
+ * <p>
+ * A request is sent on the first connection with a free stream, that is with fewer open streams than the
+ * SETTINGS_MAX_CONCURRENT_STREAMS of the server. A new connection is only opened when every connection is full,
+ * and only one at a time. Once {@code maxConnections} are open and full, requests wait in order
+ * until a stream closes. Connections that receive GOAWAY take no new requests and leave the pool once closed.
+ * <p>
+ * Connections are opened with a {@link SocketFactory}. For an SSL socket factory, h2 is negotiated with ALPN.
+ */
+public class ConnectionPool {
+
+    private final String host;
+    private final int port;
+    private final SocketFactory socketFactory;
+    private final Executor executor;
+    private final int maxConnections;
+    private final List<ClientConnection> connections = new ArrayList<>();
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private boolean connecting = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a pool. No connection is opened before the first request.
+     *
+     * @param host           the host of the server.
+     * @param port           the port of the server.
+     * @param socketFactory  creates the sockets of the connections.
+     * @param executor       the executor to open connections, complete response futures and read request bodies on.
+     * @param maxConnections the largest number of connections to open at the same time.
+     */
+    public ConnectionPool(String host, int port, SocketFactory socketFactory, Executor executor, int maxConnections) {
+        this.host = host;
+        this.port = port;
+        this.socketFactory = socketFactory;
+        this.executor = executor;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Sends a request on a connection of the pool. The request needs the :method, :scheme, :authority
+     * and :path pseudo-headers.
+     *
+     * @param request the request to send.
+     * @return a future completed with the response, as described in {@link ClientConnection#send(Request)}.
+     */
+    public CompletableFuture<Response> send(Request request) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                result.completeExceptionally(new IOException("Pool is closed"));
+                return result;
+            }
+            pending.add(new Pending(request, result));
+        }
+        dispatch();
+        return result;
+    }
+
+    /**
+     * Sends waiting requests on connections with free streams, and opens a connection if all are full.
+     */
+    private void dispatch() {
+        while (true) {
+            Pending p;
+            ClientConnection c;
+            synchronized (this) {
+                p = pending.peek();
+                if (p == null) {
+                    return;
+                }
+                c = reserve();
+                if (c == null) {
+                    if (!connecting && !closed && connections.size() < maxConnections) {
+                        connecting = true;
+                        executor.execute(this::connect);
+                    }
+                    return;
+                }
+                pending.poll();
+            }
+            c.sendReserved(p.request).whenComplete((response, error) -> {
+                if (error != null) {
+                    p.result.completeExceptionally(error);
+                } else {
+                    p.result.complete(response);
+                }
+            });
+        }
+    }
+
+    private ClientConnection reserve() {
+        for (ClientConnection c : connections) {
+            if (c.tryReserve()) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a connection and adds it to the pool. Runs on the executor.
+     */
+    private void connect() {
+        ClientConnection c = null;
+        IOException failure = null;
+        try {
+            Socket socket = socketFactory.createSocket(host, port);
+            socket.setTcpNoDelay(true);
+            if (socket instanceof SSLSocket) {
+                SSLSocket ssl = (SSLSocket) socket;
+                SSLParameters parameters = ssl.getSSLParameters();
+                parameters.setApplicationProtocols(new String[]{"h2"});
+                ssl.setSSLParameters(parameters);
+                ssl.startHandshake();
+                if (!"h2".equals(ssl.getApplicationProtocol())) {
+                    socket.close();
+                    throw new IOException("Server did not negotiate h2");
+                }
+            }
+            c = new ClientConnection(socket, executor);
+        } catch (IOException e) {
+            failure = e;
+        }
+        if (c != null) {
+            ClientConnection connection = c;
+            connection.setStreamListener(this::dispatch);
+            connection.addCloseListener(() -> {
+                synchronized (this) {
+                    connections.remove(connection);
+                }
+                dispatch();
+            });
+            // the preface must be sent before any request
+            connection.start();
+            if (connection.isClosed()) {
+                // its close listener has already run, so it must not be added
+                failure = new IOException("Connection closed while starting");
+                c = null;
+            }
+        }
+        List<Pending> failed = new ArrayList<>();
+        synchronized (this) {
+            connecting = false;
+            // a connection closing after this check is removed by its close listener, which waits for the lock
+            if (c != null && !closed && !c.isClosed()) {
+                connections.add(c);
+            } else if (c == null && connections.isEmpty()) {
+                // nothing could take the waiting requests
+                failed.addAll(pending);
+                pending.clear();
+            }
+        }
+        if (failure != null) {
+            Log.warn("Could not connect to " + host + ":" + port, failure);
+            for (Pending p : failed) {
+                p.result.completeExceptionally(failure);
+            }
+            return;
+        }
+        if (closed) {
+            c.close();
+        }
+        dispatch();
+    }
+
+    /**
+     * @return the number of open connections.
+     */
+    public synchronized int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Closes all connections. Requests waiting for a stream fail, as do requests on open streams.
+     */
+    public void close() {
+        List<ClientConnection> open;
+        List<Pending> failed;
+        synchronized (this) {
+            closed = true;
+            open = new ArrayList<>(connections);
+            failed = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Pending p : failed) {
+            p.result.completeExceptionally(new IOException("Pool is closed"));
+        }
+        for (ClientConnection c : open) {
+            c.close();
+        }
+    }
+
+    private static class Pending {
+        final Request request;
+        final CompletableFuture<Response> result;
+
+        Pending(Request request, CompletableFuture<Response> result) {
+            this.request = request;
+            this.result = result;
+        }
+    }
+}
@@ -57,6 +57,15 @@ public class ConnectionSettings {
         }
     }
 
+    /**
+     * @return a copy of these settings.
+     */
+    public ConnectionSettings copy() {
+        ConnectionSettings copy = getUndefined();
+        System.arraycopy(values, 0, copy.values, 0, values.length);
+        return copy;
+    }
+
     /**
      * @return settings containing only undefined values.
      */
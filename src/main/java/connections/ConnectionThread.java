@@ -1,55 +1,86 @@
 package connections;
 
+import logging.Log;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 
+import static frames.ErrorCode.FRAME_SIZE_ERROR;
+import static frames.Setting.SETTINGS_MAX_FRAME_SIZE;
+
+/**
+ * Reads frames from the socket of a connection and hands them to it, until the connection closes.
+ * <p>
+ * Frames are read into one buffer, which is reused for every frame and only grows if the connection advertises
+ * a larger SETTINGS_MAX_FRAME_SIZE, so handlers must copy any part of a frame they keep. Frames are checked against
+ * the SETTINGS_MAX_FRAME_SIZE the peer has acknowledged.
+ * The end of the stream or a read error closes the connection, which fails its open streams.
+ */
 class ConnectionThread extends Thread {
 
+    private static final int HEADER_LENGTH = 9;
+
     private final AbstractConnection connection;
+    private ByteBuffer buffer;
 
     ConnectionThread(AbstractConnection connection) {
         this.connection = connection;
     }
 
-
-    // Based on https://stackoverflow.com/questions/9666783/java-inputstream-wait-for-data
-
     @Override
     public void run() {
-        while (!Thread.currentThread().isInterrupted()) {
-            ByteBuffer bb = ByteBuffer.allocateDirect(1024 * 1024); // off heap memory.
-            try {
-                readLength(bb, 9);
-                int length = bb.getInt(0) >>> 8;
-
-                readLength(bb, length + 9);
-                bb.flip();
-
-                if (bb.remaining() > 0) {
-                    // process buffer.
-                    connection.onReceiveData(bb);
+        try {
+            InputStream is = connection.input();
+            buffer = ByteBuffer.allocate(HEADER_LENGTH + connection.localValueOf(SETTINGS_MAX_FRAME_SIZE));
+            while (!isInterrupted() && !connection.isClosed()) {
+                readFully(is, 0, HEADER_LENGTH);
+                int length = buffer.getInt(0) >>> 8;
+                if (length > connection.acknowledgedValueOf(SETTINGS_MAX_FRAME_SIZE)) {
+                    Log.warn("Frame of " + length + " octets exceeds SETTINGS_MAX_FRAME_SIZE, closing connection");
+                    connection.goAway(FRAME_SIZE_ERROR);
+                    return;
+                }
+                if (HEADER_LENGTH + length > buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(HEADER_LENGTH + length);
+                    larger.put(buffer.array(), 0, HEADER_LENGTH);
+                    buffer = larger;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+                readFully(is, HEADER_LENGTH, length);
+                buffer.limit(HEADER_LENGTH + length).position(0);
+                connection.receive(buffer);
             }
+        } catch (EOFException e) {
+            Log.debug("Connection closed by peer {}", connection.getSocket().getRemoteSocketAddress());
+        } catch (IOException e) {
+            if (!connection.isClosed()) {
+                Log.warn("Could not read from socket, closing connection", e);
+            }
+        } finally {
+            buffer = null;
+            connection.close();
         }
     }
 
-    private void readLength(ByteBuffer bb, int length) throws IOException {
-//        bb.clear();
-//        bb.mark();
-        bb.limit(length);
-        InputStream is = connection.getSocket().getInputStream();
-        int re;
-        while (bb.remaining() > 0 && (re = is.read()) >= 0) {
-//            System.out.println(bb.remaining());
-            bb.put((byte) re);
+    /**
+     * Reads exactly {@code length} bytes into the buffer, from the specified offset.
+     *
+     * @param is     the input stream of the socket.
+     * @param offset the offset in the buffer to read to.
+     * @param length the number of bytes to read.
+     * @throws EOFException if the stream ends first.
+     * @throws IOException  if the socket is closed.
+     */
+    private void readFully(InputStream is, int offset, int length) throws IOException {
+        byte[] array = buffer.array();
+        int n = 0;
+        while (n < length) {
+            int r = is.read(array, offset + n, length - n);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            n += r;
         }
-//        byte[] bytes = new byte[bb.position()];
-//        bb.reset();
-//        bb.get(bytes);
-//        System.out.println(new String(bytes));
-//        if (bb.remaining() > 0) throw new EOFException();
     }
 }
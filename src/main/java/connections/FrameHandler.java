@@ -0,0 +1,22 @@
+package connections;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Handles received frames of one type, such as an extension frame type registered
+ * with {@link AbstractConnection#registerFrameHandler(int, FrameHandler)}.
+ */
+@FunctionalInterface
+public interface FrameHandler {
+
+    /**
+     * Handles a received frame. Runs on the connection thread.
+     *
+     * @param flags    the flags of the frame.
+     * @param streamId the stream id of the frame.
+     * @param payload  the payload of the frame, which may only be used until this method returns.
+     * @throws IOException if the connection is closed.
+     */
+    void onFrame(byte flags, int streamId, ByteBuffer payload) throws IOException;
+}
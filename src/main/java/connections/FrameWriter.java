@@ -0,0 +1,290 @@
+package connections;
+
+import capture.FrameRecorder;
+import frames.DataFrame;
+import frames.ErrorCode;
+import frames.Frame;
+import frames.GoAwayFrame;
+import frames.RSTStreamFrame;
+import logging.Log;
+import streams.Stream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static frames.FrameType.*;
+import static frames.Setting.SETTINGS_MAX_FRAME_SIZE;
+
+/**
+ * The single thread writing frames to the socket of a connection.
+ * <p>
+ * Any thread may post frames with {@link #enqueue(Stream, Frame)}, which only adds them to a lock-free queue.
+ * The writer drains the queue in order. Frames other than DATA are written at once, unless frames are
+ * already waiting on the same stream. DATA frames wait on their stream until both the stream and the
+ * connection send windows allow them, and waiting streams are served one frame at a time, highest weight first.
+ * Only the weights of streams are used, and their dependencies are ignored. Each pass reads the weights once,
+ * so a PRIORITY frame received meanwhile takes effect on the next pass.
+ * The write listener of a stream is told when each of its DATA frames has been written in whole.
+ * A RST_STREAM frame drops the frames still waiting on its stream, except one with NO_ERROR, which only ends
+ * a stream whose response is complete and so waits behind them.
+ */
+class FrameWriter extends Thread {
+
+    private final AbstractConnection connection;
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final Map<Stream, ArrayDeque<Frame>> pending = new LinkedHashMap<>();
+    private Stream[] order = new Stream[16];
+    private long[] keys = new long[16]; // the weight of a stream, highest first, then its index in order
+    private final AtomicInteger queuedControlFrames = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    FrameWriter(AbstractConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Posts a frame to be written on a stream. Safe to call from any thread.
+     *
+     * @param s The stream the frame belongs to.
+     * @param f The frame to write.
+     * @throws IOException If the connection is closed.
+     */
+    void enqueue(Stream s, Frame f) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        if (isControl(f)) {
+            queuedControlFrames.incrementAndGet();
+        }
+        connection.metrics.framesQueued(1);
+        queue.offer(new Entry(s, f));
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Drops the frames of a stream that are waiting for flow control, for a stream reset by the peer.
+     * Safe to call from any thread.
+     *
+     * @param s the stream whose frames to drop.
+     */
+    void discard(Stream s) {
+        if (!closed) {
+            queue.offer(new Entry(s, null));
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * @return the number of control frames that are queued but not yet written.
+     */
+    int queuedControlFrames() {
+        return queuedControlFrames.get();
+    }
+
+    private static boolean isControl(Frame f) {
+        return f.type != DATA && f.type != HEADERS && f.type != PUSH_PROMISE && f.type != CONTINUATION;
+    }
+
+    /**
+     * Wakes the writer, for instance when a send window has grown.
+     */
+    void wakeUp() {
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Stops accepting frames. Queued frames that need no flow control are still written,
+     * after which the socket is closed.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        try {
+            OutputStream os = new BufferedOutputStream(connection.getSocket().getOutputStream());
+            while (!closed || !queue.isEmpty()) {
+                boolean wrote = false;
+                Entry e;
+                while ((e = queue.poll()) != null) {
+                    wrote |= route(os, e.stream, e.frame);
+                }
+                wrote |= writePending(os);
+                if (wrote) {
+                    os.flush();
+                } else if (queue.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+            }
+            os.flush();
+        } catch (IOException e) {
+            if (!closed) {
+                Log.warn("Could not write to socket", e);
+            }
+            closed = true;
+            connection.close();
+        } finally {
+            int dropped = 0;
+            for (Entry e : queue) {
+                if (e.frame != null) {
+                    dropped++;
+                }
+            }
+            for (ArrayDeque<Frame> waiting : pending.values()) {
+                dropped += waiting.size();
+            }
+            connection.metrics.framesQueued(-dropped);
+            queue.clear();
+            pending.clear();
+            try {
+                connection.getSocket().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private boolean route(OutputStream os, Stream s, Frame f) throws IOException {
+        if (f == null) {
+            drop(s);
+            connection.release(s);
+            return false;
+        }
+        ArrayDeque<Frame> waiting = pending.get(s);
+        if (f.type == RST_STREAM && waiting != null && ((RSTStreamFrame) f).errorCode != ErrorCode.NO_ERROR) {
+            // nothing more may be sent on a reset stream
+            drop(s);
+            waiting = null;
+        }
+        if (f.type != DATA && waiting == null) {
+            write(os, s, f);
+            return true;
+        }
+        if (waiting == null) {
+            waiting = new ArrayDeque<>();
+            pending.put(s, waiting);
+        }
+        waiting.add(f);
+        return false;
+    }
+
+    private void drop(Stream s) {
+        ArrayDeque<Frame> waiting = pending.remove(s);
+        if (waiting == null) {
+            return;
+        }
+        for (Frame dropped : waiting) {
+            if (isControl(dropped)) {
+                queuedControlFrames.decrementAndGet();
+            }
+            s.frameWritten();
+        }
+        connection.metrics.framesQueued(-waiting.size());
+    }
+
+    private boolean writePending(OutputStream os) throws IOException {
+        if (pending.isEmpty()) {
+            return false;
+        }
+        int n = pending.size();
+        if (order.length < n) {
+            order = new Stream[Math.max(n, order.length * 2)];
+            keys = new long[order.length];
+        }
+        int i = 0;
+        for (Stream s : pending.keySet()) {
+            order[i] = s;
+            keys[i] = (long) (255 - (s.getWeight() & 0xff)) << 32 | i;
+            i++;
+        }
+        Arrays.sort(keys, 0, n);
+        boolean wrote = false;
+        for (int k = 0; k < n; k++) {
+            Stream s = order[(int) keys[k]];
+            ArrayDeque<Frame> waiting = pending.get(s);
+            Frame f;
+            while ((f = waiting.peek()) != null && f.type != DATA) {
+                write(os, s, waiting.poll());
+                wrote = true;
+            }
+            if (f != null) {
+                DataFrame df = (DataFrame) f;
+                int allowed = Math.min(Math.min(s.getSendWindow(), connection.root.getSendWindow()),
+                        connection.settings.valueOf(SETTINGS_MAX_FRAME_SIZE));
+                boolean whole = df.length <= allowed;
+                if (whole) {
+                    waiting.poll();
+                } else if (allowed > 0 && df.padLength == 0) {
+                    df = df.split(allowed);
+                } else {
+                    if (s.markBlocked()) {
+                        connection.metrics.flowControlStall(); // once each time the stream becomes blocked
+                    }
+                    continue;
+                }
+                s.clearBlocked();
+                s.addSendWindow(-df.length);
+                connection.root.addSendWindow(-df.length);
+                if (whole) {
+                    write(os, s, df);
+                    s.dataWritten();
+                } else {
+                    writeBytes(os, s, df);
+                }
+                wrote = true;
+            }
+            if (waiting.isEmpty()) {
+                pending.remove(s);
+            }
+        }
+        Arrays.fill(order, 0, n, null);
+        return wrote;
+    }
+
+    private void write(OutputStream os, Stream s, Frame f) throws IOException {
+        writeBytes(os, s, f);
+        if (isControl(f)) {
+            queuedControlFrames.decrementAndGet();
+        }
+        s.frameWritten();
+        connection.metrics.framesQueued(-1);
+        connection.release(s);
+    }
+
+    private void writeBytes(OutputStream os, Stream s, Frame f) throws IOException {
+        ByteBuffer b = f.bytes();
+        connection.metrics.frameOut(f.type, b.remaining());
+        if (f.type == RST_STREAM) {
+            connection.metrics.reset(((RSTStreamFrame) f).errorCode, false);
+        } else if (f.type == GOAWAY) {
+            connection.metrics.goAway(((GoAwayFrame) f).errorCode, false);
+        }
+        FrameRecorder r = connection.recorder;
+        if (r != null) {
+            r.record(connection.connectionId, false, b);
+        }
+        os.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        s.markWritten(f);
+        Log.debug("Send: {}", f);
+    }
+
+    private static class Entry {
+        final Stream stream;
+        final Frame frame;
+
+        Entry(Stream stream, Frame frame) {
+            this.stream = stream;
+            this.frame = frame;
+        }
+    }
+}
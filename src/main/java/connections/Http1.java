@@ -0,0 +1,361 @@
+package connections;
+
+import handlers.Response;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads HTTP/1.1 requests and writes HTTP/1.1 responses, for clients that do not start with the HTTP/2 preface.
+ * Requests are turned into the headers of an HTTP/2 request, so they can be answered by the same handlers.
+ */
+final class Http1 {
+
+    /**
+     * The largest request line and header section that is read, in octets.
+     */
+    static final int MAX_HEAD_LENGTH = 64 * 1024;
+
+    /**
+     * The longest line with the size of a chunk, with its chunk extensions, in octets.
+     */
+    static final int MAX_CHUNK_LINE_LENGTH = 1024;
+
+    /**
+     * The content length to write the body of a response with chunked Transfer-Encoding.
+     */
+    static final long CHUNKED = -1;
+
+    /**
+     * The content length of a response that cannot have a body, such as a 204 response.
+     */
+    static final long NO_BODY = -2;
+
+    /**
+     * Headers that only apply to one HTTP/1.1 connection, which HTTP/2 does not allow (RFC 7540 8.1.2.2).
+     */
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "http2-settings", "host"
+    ));
+
+    private Http1() {
+    }
+
+    /**
+     * The request line and headers of an HTTP/1.1 request.
+     */
+    static class Head {
+        final String method;
+        final String target;
+        final String version;
+        final Map<String, String> headers;
+
+        Head(String method, String target, String version, Map<String, String> headers) {
+            this.method = method;
+            this.target = target;
+            this.version = version;
+            this.headers = headers;
+        }
+
+        /**
+         * @param name  the name of a header, in lower case.
+         * @param token a token to look for, in lower case.
+         * @return true if the header is a comma-separated list containing the token.
+         */
+        boolean hasToken(String name, String token) {
+            String value = headers.get(name);
+            if (value == null) {
+                return false;
+            }
+            for (String t : value.split(",")) {
+                if (t.trim().toLowerCase().equals(token)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return true if the client wants to keep the connection open after the response.
+         */
+        boolean keepAlive() {
+            if (hasToken("connection", "close")) {
+                return false;
+            }
+            return !version.equals("HTTP/1.0") || hasToken("connection", "keep-alive");
+        }
+
+        /**
+         * @return true if the request has a body, by its Content-Length or Transfer-Encoding header.
+         */
+        boolean hasBody() {
+            String length = headers.get("content-length");
+            return headers.containsKey("transfer-encoding") || (length != null && !length.trim().equals("0"));
+        }
+    }
+
+    /**
+     * Reads a request line and its headers. Header names are in lower case, and repeated headers are joined
+     * with a comma, except cookies which are joined with a semicolon.
+     *
+     * @param in the input stream of the connection.
+     * @return the head of the request, or null if the stream ended before the request started.
+     * @throws IOException if the stream ends within the request, or the request is malformed.
+     */
+    static Head readHead(InputStream in) throws IOException {
+        int[] read = {0};
+        String requestLine = readLine(in, read, MAX_HEAD_LENGTH);
+        while (requestLine != null && requestLine.isEmpty()) {
+            requestLine = readLine(in, read, MAX_HEAD_LENGTH); // a client may send empty lines before the request (RFC 7230 3.5)
+        }
+        if (requestLine == null) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            throw new IOException("Malformed request line");
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while ((line = readLine(in, read, MAX_HEAD_LENGTH)) != null && !line.isEmpty()) {
+            int sep = line.indexOf(':');
+            if (sep <= 0) {
+                throw new IOException("Malformed header");
+            }
+            String name = line.substring(0, sep).trim().toLowerCase();
+            String value = line.substring(sep + 1).trim();
+            headers.merge(name, value, (a, v) -> a + (name.equals("cookie") ? "; " : ", ") + v);
+        }
+        if (line == null) {
+            throw new EOFException();
+        }
+        return new Head(parts[0], parts[1], parts[2], headers);
+    }
+
+    private static String readLine(InputStream in, int[] read, int limit) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (++read[0] > limit) {
+                throw new ProtocolException("Line too long");
+            }
+            if (b == '\n') {
+                int end = sb.length();
+                if (end > 0 && sb.charAt(end - 1) == '\r') {
+                    sb.setLength(end - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) b);
+        }
+        if (sb.length() > 0) {
+            throw new EOFException();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the body of a request piece by piece, by its Content-Length or chunked Transfer-Encoding,
+     * so it can be handed to the handler as it arrives instead of being read into memory first.
+     * The size lines and trailers of a chunked body are limited on their own, not by the limit of the head.
+     */
+    static class Body {
+        private final InputStream in;
+        private final boolean chunked;
+        private long remaining;
+        private boolean first = true;
+        private boolean done;
+
+        /**
+         * @param in   the input stream of the connection.
+         * @param head the head of the request.
+         * @throws ProtocolException if the transfer encoding is not chunked, or the content-length is malformed.
+         */
+        Body(InputStream in, Head head) throws ProtocolException {
+            this.in = in;
+            String encoding = head.headers.get("transfer-encoding");
+            String length = head.headers.get("content-length");
+            if (encoding != null) {
+                if (!head.hasToken("transfer-encoding", "chunked")) {
+                    throw new ProtocolException("Unsupported transfer encoding: " + encoding);
+                }
+                chunked = true;
+            } else {
+                chunked = false;
+                try {
+                    remaining = length == null ? 0 : Long.parseLong(length.trim());
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Malformed content-length");
+                }
+                if (remaining < 0) {
+                    throw new ProtocolException("Malformed content-length");
+                }
+                done = remaining == 0;
+            }
+        }
+
+        /**
+         * Reads the next piece of the body. The trailers of a chunked body are dropped.
+         *
+         * @param max the largest number of bytes to read.
+         * @return the next piece, or null once the body has been read whole.
+         * @throws ProtocolException if the body is malformed.
+         * @throws IOException       if the stream ends within the body.
+         */
+        ByteBuffer read(int max) throws IOException {
+            if (chunked && remaining == 0 && !done) {
+                nextChunk();
+            }
+            if (done) {
+                return null;
+            }
+            byte[] piece = new byte[(int) Math.min(max, remaining)];
+            int r = in.read(piece);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            remaining -= r;
+            if (!chunked && remaining == 0) {
+                done = true;
+            }
+            return ByteBuffer.wrap(piece, 0, r);
+        }
+
+        private void nextChunk() throws IOException {
+            if (!first) {
+                String end = readLine(in, new int[]{0}, MAX_CHUNK_LINE_LENGTH);
+                if (end == null) {
+                    throw new EOFException();
+                }
+                if (!end.isEmpty()) {
+                    throw new ProtocolException("Malformed chunk");
+                }
+            }
+            first = false;
+            String size = readLine(in, new int[]{0}, MAX_CHUNK_LINE_LENGTH);
+            if (size == null) {
+                throw new EOFException();
+            }
+            int ext = size.indexOf(';');
+            try {
+                remaining = Long.parseLong((ext < 0 ? size : size.substring(0, ext)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Malformed chunk size");
+            }
+            if (remaining < 0) {
+                throw new ProtocolException("Malformed chunk size");
+            }
+            if (remaining == 0) {
+                int[] read = {0};
+                String trailer;
+                do {
+                    trailer = readLine(in, read, MAX_HEAD_LENGTH);
+                } while (trailer != null && !trailer.isEmpty());
+                if (trailer == null) {
+                    throw new EOFException();
+                }
+                done = true;
+            }
+        }
+    }
+
+    /**
+     * Turns the head of an HTTP/1.1 request into the headers of an HTTP/2 request, with the :method, :scheme,
+     * :authority and :path pseudo-headers and without the headers that only apply to the HTTP/1.1 connection.
+     *
+     * @param head   the head of the request.
+     * @param scheme the scheme of the connection, http or https.
+     * @return the headers of the request.
+     */
+    static Map<String, String> toHttp2(Head head, String scheme) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(":method", head.method);
+        headers.put(":scheme", scheme);
+        String host = head.headers.get("host");
+        if (host != null) {
+            headers.put(":authority", host);
+        }
+        headers.put(":path", head.target);
+        for (Map.Entry<String, String> e : head.headers.entrySet()) {
+            String name = e.getKey();
+            if (name.equals("te") && !e.getValue().trim().equalsIgnoreCase("trailers")) {
+                continue;
+            }
+            if (!CONNECTION_HEADERS.contains(name)) {
+                headers.put(name, e.getValue());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Writes the status line and headers of a response. The body follows either with the Content-Length
+     * given, or with chunked Transfer-Encoding.
+     *
+     * @param out           the output stream of the connection.
+     * @param response      the response.
+     * @param contentLength the length of the body, {@link #CHUNKED} if it is not known, or {@link #NO_BODY}.
+     * @param close         true if the connection closes after the response.
+     * @throws IOException if the socket is closed.
+     */
+    static void writeHead(OutputStream out, Response response, long contentLength, boolean close) throws IOException {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(response.status).append(" \r\n");
+        for (Map.Entry<String, String> e : response.headers().entrySet()) {
+            String name = e.getKey();
+            if (!name.startsWith(":") && !CONNECTION_HEADERS.contains(name) && !name.equals("content-length")) {
+                sb.append(name).append(": ").append(e.getValue()).append("\r\n");
+            }
+        }
+        if (contentLength >= 0) {
+            sb.append("content-length: ").append(contentLength).append("\r\n");
+        } else if (contentLength == CHUNKED) {
+            sb.append("transfer-encoding: chunked\r\n");
+        }
+        if (close) {
+            sb.append("connection: close\r\n");
+        }
+        sb.append("\r\n");
+        out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Writes one chunk of a body with chunked Transfer-Encoding. An empty chunk ends the body.
+     *
+     * @param out  the output stream of the connection.
+     * @param data the data of the chunk.
+     * @throws IOException if the socket is closed.
+     */
+    static void writeChunk(OutputStream out, ByteBuffer data) throws IOException {
+        int n = data.remaining();
+        out.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        write(out, data);
+        out.write(new byte[]{'\r', '\n'});
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer, without changing its position.
+     *
+     * @param out  the output stream of the connection.
+     * @param data the bytes to write.
+     * @throws IOException if the socket is closed.
+     */
+    static void write(OutputStream out, ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] b = new byte[data.remaining()];
+            data.duplicate().get(b);
+            out.write(b);
+        }
+    }
+}
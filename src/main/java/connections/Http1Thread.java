@@ -0,0 +1,355 @@
+package connections;
+
+import handlers.Request;
+import handlers.RequestBody;
+import handlers.Response;
+import logging.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Serves HTTP/1.1 requests on a server connection whose client did not start with the HTTP/2 preface.
+ * <p>
+ * Requests are answered one at a time by the handler of the connection, in order. As for HTTP/2, the handler
+ * runs on the executor of the connection and its response is written from there, while this thread reads
+ * the request body and publishes it to the handler as it arrives. Reading waits once {@link #MAX_BUFFERED} octets
+ * are published but not consumed, so a slow handler throttles the client instead of filling memory.
+ * A response body from a publisher is written with chunked Transfer-Encoding.
+ * The connection is kept open between requests, unless the client or a drain asks for it to close,
+ * and is closed once it has been idle for the idle timeout of the connection.
+ */
+class Http1Thread extends Thread {
+
+    /**
+     * The largest piece of a request body read at a time, in octets.
+     */
+    static final int PIECE_SIZE = 16 * 1024;
+
+    /**
+     * The most octets of a request body published to the handler but not yet consumed.
+     */
+    static final int MAX_BUFFERED = 64 * 1024;
+
+    private final ServerConnection connection;
+    private final String scheme;
+    private final long idleTimeoutMillis;
+    private Http1.Head head;
+    private volatile boolean busy = true;
+    private volatile boolean draining = false;
+    private volatile boolean malformed = false;
+    private final Object bodyLock = new Object();
+    private int buffered;
+
+    /**
+     * @param connection        the connection to serve requests on.
+     * @param first             the head of the first request, which has already been read.
+     * @param scheme            the scheme of the connection, http or https.
+     * @param idleTimeoutMillis the time to wait for the next request, in milliseconds, or 0 to wait forever.
+     */
+    Http1Thread(ServerConnection connection, Http1.Head first, String scheme, long idleTimeoutMillis) {
+        this.connection = connection;
+        this.head = first;
+        this.scheme = scheme;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    @Override
+    public void run() {
+        try {
+            InputStream in = connection.input();
+            OutputStream out = new BufferedOutputStream(connection.getSocket().getOutputStream());
+            connection.getSocket().setSoTimeout((int) Math.min(idleTimeoutMillis, Integer.MAX_VALUE));
+            while (head != null && !isInterrupted() && !connection.isClosed()) {
+                if (!serve(in, out, head)) {
+                    return;
+                }
+                busy = false;
+                if (draining) {
+                    return;
+                }
+                head = Http1.readHead(in);
+                busy = true;
+            }
+        } catch (SocketTimeoutException e) {
+            Log.debug("HTTP/1.1 connection idle for {} ms, closing connection", idleTimeoutMillis);
+        } catch (EOFException e) {
+            Log.debug("Connection closed by peer {}", connection.getSocket().getRemoteSocketAddress());
+        } catch (IOException e) {
+            if (!connection.isClosed()) {
+                Log.warn("HTTP/1.1 connection failure, closing connection", e);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the connection after the response to the current request, or at once if no request is being served.
+     */
+    void drain() {
+        draining = true;
+        if (!busy) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Runs the handler on the executor, and reads the request body while it runs.
+     *
+     * @return true if the connection stays open for another request.
+     */
+    private boolean serve(InputStream in, OutputStream out, Http1.Head head) throws IOException {
+        boolean close = !head.keepAlive() || draining;
+        Http1.Body body;
+        try {
+            body = new Http1.Body(in, head);
+        } catch (ProtocolException e) {
+            Log.debug("Malformed HTTP/1.1 request body: {}", e.getMessage());
+            respond(out, head, new Response(400), true);
+            return false;
+        }
+        if (head.hasToken("expect", "100-continue")) {
+            out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+        RequestBody requestBody = head.hasBody() ? new RequestBody(this::consumed) : RequestBody.empty();
+        Request request = new Request(0, Http1.toHttp2(head, scheme), requestBody);
+        synchronized (bodyLock) {
+            buffered = 0;
+        }
+        malformed = false;
+        CompletableFuture<Boolean> answered = CompletableFuture.supplyAsync(
+                () -> answer(out, head, request, close), connection.executor);
+        answered.whenComplete((keepOpen, t) -> {
+            synchronized (bodyLock) {
+                bodyLock.notifyAll();
+            }
+        });
+        if (head.hasBody()) {
+            try {
+                ByteBuffer piece;
+                while ((piece = body.read(PIECE_SIZE)) != null) {
+                    // once answered, the rest of the body is only read to find the next request
+                    if (awaitRoom(answered, piece.remaining())) {
+                        requestBody.offer(piece);
+                    }
+                }
+                requestBody.complete();
+            } catch (ProtocolException e) {
+                Log.debug("Malformed HTTP/1.1 request body: {}", e.getMessage());
+                malformed = true;
+                requestBody.fail(e);
+                await(answered);
+                return false;
+            } catch (IOException e) {
+                requestBody.fail(e);
+                throw e;
+            }
+        }
+        return await(answered) && !close;
+    }
+
+    /**
+     * Runs the handler for a request and writes its response. Runs on the executor.
+     *
+     * @return false if the connection must close after the response.
+     */
+    private boolean answer(OutputStream out, Http1.Head head, Request request, boolean close) {
+        Response response;
+        try {
+            response = connection.handler.handle(request);
+        } catch (Throwable t) {
+            Log.error("Handler failed on HTTP/1.1 request", t);
+            response = new Response(500);
+        }
+        try {
+            if (malformed) {
+                respond(out, head, new Response(400), true);
+                return false;
+            }
+            return respond(out, head, response, close);
+        } catch (IOException e) {
+            if (!connection.isClosed()) {
+                Log.warn("Could not respond on HTTP/1.1 connection", e);
+            }
+            return false;
+        } finally {
+            ((RequestBody) request.body()).discard();
+        }
+    }
+
+    /**
+     * Waits until the handler has consumed enough of the published body to publish another piece.
+     *
+     * @param answered completes once the response has been written.
+     * @param n        the size of the next piece.
+     * @return false if the response has been written, so the piece is not needed.
+     * @throws InterruptedIOException if the connection is closed while waiting.
+     */
+    private boolean awaitRoom(CompletableFuture<Boolean> answered, int n) throws InterruptedIOException {
+        synchronized (bodyLock) {
+            while (buffered >= MAX_BUFFERED && !answered.isDone()) {
+                try {
+                    bodyLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (answered.isDone()) {
+                return false;
+            }
+            buffered += n;
+            return true;
+        }
+    }
+
+    private void consumed(int n) {
+        synchronized (bodyLock) {
+            buffered -= n;
+            bodyLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if the connection stays open after the response.
+     * @throws InterruptedIOException if the connection is closed while waiting.
+     */
+    private static boolean await(CompletableFuture<Boolean> answered) throws InterruptedIOException {
+        try {
+            return answered.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a response, with its body in memory as one piece, or its publisher as chunks.
+     *
+     * @return false if the body could not be written whole, so the connection must close.
+     */
+    private boolean respond(OutputStream out, Http1.Head head, Response response, boolean close) throws IOException {
+        int status = response.status;
+        boolean noBody = head.method.equals("HEAD") || status < 200 || status == 204 || status == 304;
+        ByteBuffer body = response.body();
+        Flow.Publisher<ByteBuffer> publisher = body == null ? response.publisher() : null;
+        if (noBody) {
+            Http1.writeHead(out, response, status == 204 || status < 200 ? Http1.NO_BODY
+                    : body != null ? body.remaining() : publisher != null ? Http1.CHUNKED : 0, close);
+        } else if (publisher == null) {
+            Http1.writeHead(out, response, body == null ? 0 : body.remaining(), close);
+            if (body != null) {
+                Http1.write(out, body);
+            }
+        } else {
+            Http1.writeHead(out, response, Http1.CHUNKED, close);
+            if (!writeChunks(out, publisher)) {
+                out.flush();
+                return false;
+            }
+        }
+        out.flush();
+        return true;
+    }
+
+    private boolean writeChunks(OutputStream out, Flow.Publisher<ByteBuffer> publisher) throws IOException {
+        Chunks chunks = new Chunks();
+        publisher.subscribe(chunks);
+        try {
+            ByteBuffer chunk;
+            while ((chunk = chunks.next()) != null) {
+                if (chunk.hasRemaining()) {
+                    Http1.writeChunk(out, chunk);
+                }
+                chunks.request();
+            }
+        } catch (IOException e) {
+            chunks.cancel();
+            throw e;
+        }
+        if (chunks.failure != null) {
+            Log.warn("Response body failed on HTTP/1.1 request", chunks.failure);
+            return false; // no last chunk, so the client sees the body is cut short
+        }
+        Http1.writeChunk(out, ByteBuffer.allocate(0));
+        return true;
+    }
+
+    /**
+     * Takes the buffers of a response body one at a time, so they are written by the thread of the connection.
+     */
+    private static class Chunks implements Flow.Subscriber<ByteBuffer> {
+        private static final Object DONE = new Object();
+        private final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+        private volatile Flow.Subscription subscription;
+        Throwable failure;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            signals.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            signals.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add(DONE);
+        }
+
+        /**
+         * @return the next buffer, or null once the body is complete or has failed.
+         * @throws IOException if the thread is interrupted.
+         */
+        ByteBuffer next() throws IOException {
+            Object signal;
+            try {
+                signal = signals.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (signal == DONE) {
+                return null;
+            }
+            if (signal instanceof Throwable) {
+                failure = (Throwable) signal;
+                return null;
+            }
+            return (ByteBuffer) signal;
+        }
+
+        void request() {
+            subscription.request(1);
+        }
+
+        void cancel() {
+            Flow.Subscription s = subscription;
+            if (s != null) {
+                s.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package connections;
+
+import frames.DataFrame;
+import frames.ErrorCode;
+import frames.RSTStreamFrame;
+import logging.Log;
+import streams.Stream;
+import streams.StreamState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * Sends a response body publisher as DATA frames on a stream.
+ * <p>
+ * Only one buffer is requested at a time, and the next one is not requested before the previous
+ * DATA frame has been written, so the publisher is throttled by the flow-control windows of the stream.
+ * The subscription is kept on the stream, so the connection cancels it when the stream is reset, times out
+ * or is closed before the body has ended.
+ */
+class ResponseSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final AbstractConnection connection;
+    private final Stream stream;
+    private final Executor executor;
+
+    ResponseSubscriber(AbstractConnection connection, Stream stream, Executor executor) {
+        this.connection = connection;
+        this.stream = stream;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        stream.setBodySubscription(subscription);
+        if (stream.getState() == StreamState.CLOSED) {
+            stream.cancelBody(); // reset before the body started
+            return;
+        }
+        stream.setWriteListener(() -> executor.execute(() -> subscription.request(1)));
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        try {
+            if (!connection.sendFrame(stream, new DataFrame(stream.streamId, item, false))) {
+                cancel();
+            }
+        } catch (IOException e) {
+            cancel();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        stream.setWriteListener(null);
+        stream.setBodySubscription(null);
+        Log.warn("Response body failed on stream " + stream.streamId, throwable);
+        try {
+            connection.sendFrame(stream, new RSTStreamFrame(stream.streamId, ErrorCode.INTERNAL_ERROR));
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        stream.setWriteListener(null);
+        stream.setBodySubscription(null);
+        try {
+            connection.sendFrame(stream, new DataFrame(stream.streamId, EMPTY, true));
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void cancel() {
+        stream.cancelBody();
+    }
+}
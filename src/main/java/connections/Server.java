@@ -0,0 +1,128 @@
+package connections;
+
+import capture.FrameRecorder;
+import logging.Log;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A server accepting connections on a server socket, and keeping track of the open connections
+ * so they can be drained together.
+ */
+public class Server {
+
+    private final ServerSocket serverSocket;
+    private final Function<Socket, AbstractConnection> factory;
+    private final Set<AbstractConnection> connections = ConcurrentHashMap.newKeySet();
+    private volatile FrameRecorder recorder;
+
+    /**
+     * Creates a server.
+     *
+     * @param serverSocket the server socket to accept connections on.
+     * @param factory      creates a connection for each accepted socket.
+     */
+    public Server(ServerSocket serverSocket, Function<Socket, AbstractConnection> factory) {
+        this.serverSocket = serverSocket;
+        this.factory = factory;
+    }
+
+    /**
+     * Accepts and starts connections until the server socket is closed. Each connection is started
+     * on a thread of its own, which goes on to read its frames.
+     *
+     * @throws IOException if there is an error accepting connections.
+     */
+    public void serve() throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                throw e;
+            }
+            AbstractConnection c;
+            try {
+                c = factory.apply(client);
+            } catch (RuntimeException e) {
+                Log.error("Could not create connection", e);
+                client.close();
+                continue;
+            }
+            connections.add(c);
+            c.setRecorder(recorder);
+            c.addCloseListener(() -> connections.remove(c));
+            new Thread(() -> start(c), "connection-" + c.connectionId).start();
+        }
+    }
+
+    /**
+     * Starts a connection, on a thread of its own so that a slow TLS handshake or preface does not hold up
+     * accepting other connections. Whatever the connection throws only closes that connection.
+     */
+    private static void start(AbstractConnection c) {
+        try {
+            c.start();
+        } catch (Throwable t) {
+            Log.error("Could not start connection", t);
+            c.close();
+        }
+    }
+
+    /**
+     * Stops accepting connections and drains all open connections, as described in
+     * {@link AbstractConnection#drain()}. Connections still open at the deadline are closed.
+     *
+     * @param timeoutMillis the time open streams have to finish, in milliseconds.
+     */
+    public void drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (AbstractConnection c : connections) {
+            try {
+                c.drain();
+            } catch (IOException e) {
+                c.close();
+            }
+        }
+        for (AbstractConnection c : connections) {
+            if (!c.awaitClosed(Math.max(0, deadline - System.currentTimeMillis()))) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * @param recorder records the frames of connections accepted from now on, or null.
+     */
+    public void setRecorder(FrameRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * @return the server-wide metrics, counting all connections.
+     */
+    public Metrics getMetrics() {
+        return Metrics.global();
+    }
+
+    /**
+     * @return the open connections of this server.
+     */
+    public Set<AbstractConnection> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+}
@@ -0,0 +1,487 @@
+package connections;
+
+import frames.*;
+import handlers.Pusher;
+import handlers.Request;
+import handlers.RequestBody;
+import handlers.RequestHandler;
+import handlers.Response;
+import logging.Log;
+import metrics.Latencies;
+import streams.Stream;
+import streams.StreamState;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static frames.Setting.*;
+
+/**
+ * A server connection that answers requests with a {@link RequestHandler}.
+ * <p>
+ * The connection thread only reads and demultiplexes frames. When the HEADERS of a new stream arrive,
+ * the handler is run on the executor, and its response is sent through the writer of the connection,
+ * so many streams can be handled at the same time without blocking PINGs and WINDOW_UPDATEs.
+ * <p>
+ * Request bodies are published to the handler as DATA frames arrive, and window is only given back
+ * to the peer as the handler consumes them. Response bodies are requested from their publisher one
+ * buffer at a time, as the send windows allow the previous buffer to be written. A response that ends before
+ * its request body is followed by RST_STREAM(NO_ERROR), so the client stops sending a body no one will read
+ * (RFC 7540 8.1).
+ * <p>
+ * The connection advertises the settings of {@link SettingsProfile#DEFAULT}, unless another profile is set
+ * before it starts. New streams beyond the acknowledged SETTINGS_MAX_CONCURRENT_STREAMS are refused with
+ * RST_STREAM(REFUSED_STREAM), which peers may safely retry. The decision is made from a counter of open streams,
+ * before the stream is created, so a refused stream costs no state, timer or request. HEADERS opening a stream
+ * with an even id are a connection error, and with an id not above the last one, a STREAM_CLOSED stream error.
+ * <p>
+ * The weights in HEADERS and PRIORITY frames decide which streams the writer serves first when several wait
+ * to send DATA. Stream dependencies are ignored, so a stream is never held back for the one it depends on.
+ * <p>
+ * Handlers may push responses with {@link Request#push(Map)}. A pushed stream is reserved with an even id,
+ * promised with a PUSH_PROMISE frame on the stream of the request, and then answered by the handler like
+ * any other request.
+ * <p>
+ * The latencies of each answered request are recorded per path in {@link #latencies}.
+ * <p>
+ * Clients that do not start with the HTTP/2 connection preface are read as HTTP/1.1. A request without a body
+ * with {@code Upgrade: h2c} on a cleartext connection is upgraded to HTTP/2 as described in RFC 7540 3.2, with the
+ * settings in its HTTP2-Settings header, and is answered on stream 1. Any other HTTP/1.1 request is answered
+ * by the same handler over HTTP/1.1, and the connection stays HTTP/1.1.
+ */
+public class ServerConnection extends AbstractConnection {
+
+    protected final RequestHandler handler;
+    protected final Executor executor;
+    private final Map<Integer, RequestBody> bodies = new ConcurrentHashMap<>();
+    private final Map<Integer, String> routes = new ConcurrentHashMap<>();
+    protected Latencies latencies = Latencies.global();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicInteger pushedStreams = new AtomicInteger();
+    private final Object pushLock = new Object();
+    private int nextPushId = 2;
+    private volatile Http1Thread http1;
+
+    /**
+     * Creates a server connection.
+     *
+     * @param socket   the socket to send data over.
+     * @param handler  the handler answering requests.
+     * @param executor the executor to run the handler on.
+     */
+    public ServerConnection(Socket socket, RequestHandler handler, Executor executor) {
+        super(socket);
+        this.handler = handler;
+        this.executor = executor;
+        localSettings.setSettings(SettingsProfile.DEFAULT.settings());
+    }
+
+    /**
+     * Reads the client connection preface, or else an HTTP/1.1 request, which is either upgraded to HTTP/2
+     * or answered over HTTP/1.1.
+     *
+     * @throws IOException if the socket is closed.
+     */
+    @Override
+    public void onFirstRequest() throws IOException {
+        if (readPreface()) {
+            Log.debug("Client request for HTTP/2.0 from {}", socket.getRemoteSocketAddress());
+            sendInitialSettings();
+            return;
+        }
+        Http1.Head head;
+        try {
+            head = Http1.readHead(input());
+        } catch (IOException e) {
+            Log.debug("Neither HTTP/2 nor HTTP/1.1 from {}", socket.getRemoteSocketAddress());
+            close();
+            return;
+        }
+        if (head == null) {
+            close();
+            return;
+        }
+        String scheme = socket instanceof SSLSocket ? "https" : "http";
+        if (scheme.equals("http") && upgrade(head)) {
+            return;
+        }
+        Log.debug("Client request for HTTP/1.1 from {}", socket.getRemoteSocketAddress());
+        // HTTP/1.1 has no PING or GOAWAY, so the idle timeout becomes a read timeout
+        http1 = new Http1Thread(this, head, scheme, idleTimeoutMillis);
+        idleTimeoutMillis = 0;
+        keepAliveMillis = 0;
+    }
+
+    /**
+     * Upgrades an HTTP/1.1 request with {@code Upgrade: h2c} to HTTP/2. The settings in its HTTP2-Settings header
+     * are applied as if received in a SETTINGS frame, a 101 response is sent, followed by the SETTINGS of this
+     * connection, and the request is answered on stream 1 once the client has sent its preface.
+     * A request with a body is not upgraded, since its body would have to be read whole before the preface,
+     * while over HTTP/1.1 it is published to the handler as it arrives.
+     *
+     * @param head the head of the request.
+     * @return false if the request cannot be upgraded, and should be answered over HTTP/1.1.
+     * @throws IOException if the socket is closed, or the client does not send the preface.
+     */
+    private boolean upgrade(Http1.Head head) throws IOException {
+        String encoded = head.headers.get("http2-settings");
+        if (!head.hasToken("upgrade", "h2c") || !head.hasToken("connection", "upgrade")
+                || !head.hasToken("connection", "http2-settings") || encoded == null || encoded.contains(",")
+                || head.hasBody()) {
+            return false;
+        }
+        ConnectionSettings clientSettings;
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(encoded.trim());
+            clientSettings = new SettingsFrame((byte) 0, 0, ByteBuffer.wrap(payload)).settings;
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            Log.debug("Malformed HTTP2-Settings header from {}", socket.getRemoteSocketAddress());
+            return false;
+        }
+        Log.debug("Client upgrade to HTTP/2.0 from {}", socket.getRemoteSocketAddress());
+        applySettings(clientSettings);
+        // nothing has been queued yet, so the 101 response is written before any frame
+        OutputStream os = socket.getOutputStream();
+        os.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                .getBytes(StandardCharsets.ISO_8859_1));
+        os.flush();
+        sendInitialSettings();
+        if (!readPreface()) {
+            throw ErrorCode.PROTOCOL_ERROR.error();
+        }
+        Stream stream = new Stream(1, root);
+        stream.setState(StreamState.HALF_CLOSED_REMOTE);
+        addStream(stream);
+        lastStreamId = 1;
+        activeStreams.incrementAndGet();
+        Request request = new Request(1, Http1.toHttp2(head, "http"), RequestBody.empty(), headers -> push(stream, headers));
+        routes.put(1, routeOf(request));
+        executor.execute(() -> handle(stream, request));
+        return true;
+    }
+
+    @Override
+    protected Thread newReader() {
+        Http1Thread h = http1;
+        return h != null ? h : super.newReader();
+    }
+
+    /**
+     * Drains the connection as described in {@link AbstractConnection#drain()}. An HTTP/1.1 connection
+     * is closed after the response to the request being served, if any.
+     *
+     * @throws IOException if the connection is closed.
+     */
+    @Override
+    public void drain() throws IOException {
+        Http1Thread h = http1;
+        if (h != null) {
+            h.drain();
+        } else {
+            super.drain();
+        }
+    }
+
+    @Override
+    public void onHeadersFrame(HeadersFrame hf) throws IOException {
+        Log.debug("Recv: {}", hf);
+        boolean endStream = Flags.isSet(hf.flags, Flags.END_STREAM);
+        if (streamMap.containsKey(hf.streamId)) {
+            // trailers
+            RequestBody body = bodies.remove(hf.streamId);
+            if (body != null && endStream) {
+                body.complete();
+            }
+            return;
+        }
+        if (hf.streamId % 2 == 0) {
+            throw ErrorCode.PROTOCOL_ERROR.error(); // clients open odd streams only
+        }
+        if (hf.streamId <= lastStreamId) {
+            // a stream that has been closed, or was skipped, and cannot be opened again
+            throw ErrorCode.STREAM_CLOSED.streamError(hf.streamId);
+        }
+        if (activeStreams.get() >= acknowledgedValueOf(SETTINGS_MAX_CONCURRENT_STREAMS)) {
+            resetStream(hf.streamId, ErrorCode.REFUSED_STREAM);
+            return;
+        }
+        activeStreams.incrementAndGet();
+        Stream parent = streamMap.get(hf.streamDependency);
+        Stream stream = Flags.isSet(hf.flags, Flags.PRIORITY)
+                ? new Stream(hf.streamId, parent == null ? root : parent, (byte) (hf.weight - 1))
+                : new Stream(hf.streamId, root);
+        addStream(stream);
+        RequestBody body;
+        if (endStream) {
+            body = RequestBody.empty();
+        } else {
+            body = new RequestBody(n -> consumed(stream, n));
+            bodies.put(hf.streamId, body);
+        }
+        Request request = Request.parse(hf.streamId, hf.headerBlockFragment, body, headers -> push(stream, headers));
+        routes.put(hf.streamId, routeOf(request));
+        executor.execute(() -> handle(stream, request));
+    }
+
+    /**
+     * Promises a pushed response on a stream, and runs the handler for the promised request.
+     * Pushes are dropped if the peer has disabled push, or if as many pushed streams are open
+     * as the peer allows with SETTINGS_MAX_CONCURRENT_STREAMS.
+     *
+     * @param parent  the stream of the request the push is associated with.
+     * @param headers the headers of the promised request.
+     * @return false if the push was dropped.
+     * @throws IOException if the connection is closed.
+     */
+    protected boolean push(Stream parent, Map<String, String> headers) throws IOException {
+        if (settings.valueOf(SETTINGS_ENABLE_PUSH) == 0) {
+            return false;
+        }
+        if (pushedStreams.incrementAndGet() > settings.valueOf(SETTINGS_MAX_CONCURRENT_STREAMS)) {
+            pushedStreams.decrementAndGet();
+            return false;
+        }
+        Stream promised;
+        Request pushed;
+        // promised stream ids must be sent in increasing order
+        synchronized (pushLock) {
+            promised = new Stream(nextPushId, parent);
+            promised.setState(StreamState.RESERVED_LOCAL);
+            pushed = new Request(promised.streamId, headers, RequestBody.empty(), Pusher.NONE);
+            addStream(promised);
+            if (!sendFrame(parent, new PushPromiseFrame(parent.streamId, (short) 0, promised.streamId, pushed.headerBlock(), true))) {
+                // closed like any other stream, so its timer, the metrics and the push count are released
+                promised.setState(StreamState.CLOSED);
+                release(promised);
+                return false;
+            }
+            nextPushId += 2;
+        }
+        routes.put(promised.streamId, routeOf(pushed));
+        executor.execute(() -> handle(promised, pushed));
+        return true;
+    }
+
+    /**
+     * Changes the number of concurrent streams the peer may open, and advertises it to the peer.
+     * The limit applies once the peer has acknowledged it, and streams already open are not affected.
+     *
+     * @param maxConcurrentStreams the new limit.
+     * @throws IOException if the connection is closed.
+     */
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) throws IOException {
+        setLocalSetting(SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+    }
+
+    /**
+     * @return the number of streams opened by the peer that are not yet closed.
+     */
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    /**
+     * @param request a request.
+     * @return the route to record the latencies of the request under, which is its path without the query.
+     */
+    protected String routeOf(Request request) {
+        String path = request.path();
+        if (path == null) {
+            return "";
+        }
+        int query = path.indexOf('?');
+        return query < 0 ? path : path.substring(0, query);
+    }
+
+    @Override
+    protected void onStreamClosed(Stream s) {
+        super.onStreamClosed(s);
+        RequestBody body = bodies.remove(s.streamId);
+        if (body != null) {
+            body.fail(new IOException("Stream closed before the request body ended"));
+        }
+        String route = routes.remove(s.streamId);
+        if (route != null && s.getEndWrittenAt() != 0) {
+            latencies.record(route, s);
+        }
+    }
+
+    @Override
+    protected void onStreamEnded(Stream s) {
+        if (s.streamId % 2 == 0) {
+            pushedStreams.decrementAndGet();
+        } else {
+            activeStreams.decrementAndGet();
+        }
+    }
+
+    /**
+     * Runs the handler for a request and sends its response. Runs on the executor.
+     *
+     * @param stream  the stream the request was received on.
+     * @param request the received request.
+     */
+    protected void handle(Stream stream, Request request) {
+        Response response;
+        stream.markHandlerStarted();
+        try {
+            response = handler.handle(request);
+        } catch (Throwable t) {
+            Log.error("Handler failed on stream " + stream.streamId, t);
+            response = new Response(500);
+        }
+        try {
+            respond(stream, response);
+        } catch (IOException e) {
+            if (isClosed()) {
+                Log.debug("Connection closed before responding on stream {}", stream.streamId);
+            } else {
+                Log.warn("Could not respond on stream " + stream.streamId, e);
+            }
+        }
+        if (request.body() instanceof RequestBody) {
+            ((RequestBody) request.body()).discard();
+        }
+    }
+
+    /**
+     * Sends a response on a stream, as a HEADERS frame followed by DATA frames if the response has a body.
+     * A body in memory is sent as one DATA frame, while a publisher is subscribed to.
+     *
+     * @param stream   the stream to respond on.
+     * @param response the response to send.
+     * @throws IOException if the connection is closed.
+     */
+    protected void respond(Stream stream, Response response) throws IOException {
+        ByteBuffer body = response.body();
+        Flow.Publisher<ByteBuffer> publisher = body == null ? response.publisher() : null;
+        boolean hasBody = (body != null && body.hasRemaining()) || publisher != null;
+        if (!sendFrame(stream, new HeadersFrame(stream.streamId, !hasBody, true, (short) 0, response.headerBlock()))) {
+            return;
+        }
+        if (body != null && body.hasRemaining()) {
+            sendFrame(stream, new DataFrame(stream.streamId, body, true));
+        } else if (publisher != null) {
+            publisher.subscribe(new ResponseSubscriber(this, stream, executor));
+        }
+    }
+
+    /**
+     * Sends a frame as {@link AbstractConnection#sendFrame(Stream, Frame)} does, and resets a request stream
+     * with NO_ERROR once its response has ended while the client may still be sending the request body.
+     */
+    @Override
+    public boolean sendFrame(Stream s, Frame f) throws IOException {
+        if (!super.sendFrame(s, f)) {
+            return false;
+        }
+        boolean end = (f.type == FrameType.DATA || f.type == FrameType.HEADERS) && Flags.isSet(f.flags, Flags.END_STREAM);
+        if (end && s.streamId % 2 == 1 && s.getState() == StreamState.HALF_CLOSED_LOCAL) {
+            super.sendFrame(s, new RSTStreamFrame(s.streamId, ErrorCode.NO_ERROR));
+        }
+        return true;
+    }
+
+    @Override
+    public void onDataFrame(DataFrame df) {
+        Log.debug("Recv: {}", df);
+        RequestBody body = bodies.get(df.streamId);
+        Stream stream = streamMap.get(df.streamId);
+        int dataLength = df.dataLength();
+        consumed(stream, df.length - dataLength); // padding
+        if (body == null) {
+            consumed(null, dataLength);
+            return;
+        }
+        if (dataLength > 0) {
+            ByteBuffer copy = ByteBuffer.allocate(dataLength);
+            copy.put(df.data()).flip();
+            body.offer(copy);
+        }
+        if (Flags.isSet(df.flags, Flags.END_STREAM)) {
+            bodies.remove(df.streamId);
+            body.complete();
+        }
+    }
+
+    @Override
+    public void onPriorityFrame(PriorityFrame pf) {
+        Log.debug("Recv: {}", pf);
+        Stream s = streamMap.get(pf.streamId);
+        if (s != null) {
+            s.setWeight((byte) (pf.weight - 1));
+        }
+    }
+
+    @Override
+    public void onRSTStreamFrame(RSTStreamFrame rsf) {
+        Log.debug("Recv: {}", rsf);
+        RequestBody body = bodies.remove(rsf.streamId);
+        if (body != null) {
+            body.fail(new IOException("Stream reset: " + rsf.errorCode));
+        }
+    }
+
+    @Override
+    public void onSettingsFrame(SettingsFrame sf) throws IOException {
+        Log.debug("Recv: {}", sf);
+        if (!Flags.isSet(sf.flags, Flags.ACK)) {
+            sendFrame(root, new SettingsFrame(0, true, ConnectionSettings.getUndefined()));
+        }
+    }
+
+    @Override
+    protected void onStreamTimeout(Stream s) {
+        RequestBody body = bodies.remove(s.streamId);
+        if (body != null) {
+            body.fail(new IOException("Stream timed out"));
+        }
+    }
+
+    @Override
+    protected void onStreamError(Stream s, ErrorCode errorCode) {
+        RequestBody body = bodies.remove(s.streamId);
+        if (body != null) {
+            body.fail(new IOException("Stream error: " + errorCode));
+        }
+    }
+
+    @Override
+    public void onPushPromiseFrame(PushPromiseFrame ppf) {
+        Log.debug("Recv: {}", ppf);
+    }
+
+    @Override
+    public void onPingFrame(PingFrame pf) throws IOException {
+        Log.debug("Recv: {}", pf);
+        if (!Flags.isSet(pf.flags, Flags.ACK)) {
+            sendFrame(root, new PingFrame(0, true, pf.opaqueData));
+        }
+    }
+
+    @Override
+    public void onGoAwayFrame(GoAwayFrame gaf) {
+        Log.debug("Recv: {}", gaf);
+    }
+
+    @Override
+    public void onWindowUpdateFrame(WindowUpdateFrame wuf) {
+        Log.debug("Recv: {}", wuf);
+    }
+
+    @Override
+    public void onContinuationFrame(ContinuationFrame cf) {
+        Log.debug("Recv: {}", cf);
+    }
+}
@@ -0,0 +1,76 @@
+package connections;
+
+import frames.HeaderCompressor;
+
+import static frames.Setting.SETTINGS_HEADER_TABLE_SIZE;
+import static frames.Setting.SETTINGS_INITIAL_WINDOW_SIZE;
+import static frames.Setting.SETTINGS_MAX_CONCURRENT_STREAMS;
+import static frames.Setting.SETTINGS_MAX_FRAME_SIZE;
+
+/**
+ * Sets of local settings tuned for a kind of traffic, advertised to the peer with
+ * {@link AbstractConnection#setSettingsProfile(SettingsProfile)}.
+ * <p>
+ * Besides the settings, a profile has a size for the flow-control window of the whole connection,
+ * which is not a setting but is raised with a WINDOW_UPDATE frame on stream 0.
+ * Every profile advertises a SETTINGS_HEADER_TABLE_SIZE of {@link HeaderCompressor#STATELESS_TABLE_SIZE},
+ * since header blocks are decoded without a dynamic table kept from earlier blocks.
+ */
+public enum SettingsProfile {
+
+    /**
+     * The default windows and frame size, with the limit on concurrent streams made explicit.
+     */
+    DEFAULT(100, 65_535, 65_535, 16_384),
+
+    /**
+     * Many concurrent streams and small frames, so one large response does not hold up the others,
+     * with a connection window large enough that the streams do not wait for each other's WINDOW_UPDATE.
+     */
+    LOW_LATENCY(250, 65_535, 1024 * 1024, 16_384),
+
+    /**
+     * Fewer streams with windows of 1 MiB and frames of 64 KiB, for large bodies sent by the peer over links with
+     * a high bandwidth-delay product, where the default window of 64 KiB stalls the peer.
+     */
+    BULK_THROUGHPUT(32, 1024 * 1024, 16 * 1024 * 1024, 64 * 1024);
+
+    /**
+     * The value of SETTINGS_MAX_CONCURRENT_STREAMS.
+     */
+    public final int maxConcurrentStreams;
+
+    /**
+     * The value of SETTINGS_INITIAL_WINDOW_SIZE, the receive window of each stream, in octets.
+     */
+    public final int initialWindowSize;
+
+    /**
+     * The receive window of the connection, in octets.
+     */
+    public final int connectionWindowSize;
+
+    /**
+     * The value of SETTINGS_MAX_FRAME_SIZE, in octets.
+     */
+    public final int maxFrameSize;
+
+    SettingsProfile(int maxConcurrentStreams, int initialWindowSize, int connectionWindowSize, int maxFrameSize) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.initialWindowSize = initialWindowSize;
+        this.connectionWindowSize = connectionWindowSize;
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * @return new settings with the values of this profile, and the others undefined.
+     */
+    public ConnectionSettings settings() {
+        ConnectionSettings settings = ConnectionSettings.getUndefined();
+        settings.setValue(SETTINGS_HEADER_TABLE_SIZE, HeaderCompressor.STATELESS_TABLE_SIZE);
+        settings.setValue(SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+        settings.setValue(SETTINGS_INITIAL_WINDOW_SIZE, initialWindowSize);
+        settings.setValue(SETTINGS_MAX_FRAME_SIZE, maxFrameSize);
+        return settings;
+    }
+}
@@ -0,0 +1,243 @@
+package connections;
+
+import logging.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel running timeouts for many connections on a single thread.
+ * <p>
+ * The wheel is an array of buckets, each holding the timeouts that expire in one tick of a round.
+ * Scheduling and cancelling only add the timeout to a lock-free queue, and the timer thread moves
+ * timeouts into and out of their buckets once per tick, so each costs O(1) no matter how many are pending.
+ * Timeouts expire up to one tick late.
+ * <p>
+ * Tasks run on the timer thread, so they must be short and must not block,
+ * such as checking a deadline and queueing a frame.
+ */
+public class TimerWheel {
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+    private static volatile TimerWheel shared;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startTime;
+    private long tick = 0;
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates and starts a timing wheel.
+     *
+     * @param tickMillis    the length of a tick in milliseconds, which is the precision of the timeouts.
+     * @param ticksPerWheel the number of buckets, rounded up to a power of two.
+     */
+    public TimerWheel(long tickMillis, int ticksPerWheel) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.thread = new Thread(this::run, "timer-wheel");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return the timing wheel shared by all connections, with ticks of 100 milliseconds.
+     */
+    public static TimerWheel shared() {
+        TimerWheel t = shared;
+        if (t == null) {
+            synchronized (TimerWheel.class) {
+                t = shared;
+                if (t == null) {
+                    shared = t = new TimerWheel(100, 512);
+                }
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Schedules a task to run on the timer thread once a delay has passed.
+     *
+     * @param task        the task to run.
+     * @param delayMillis the delay in milliseconds.
+     * @return a timeout that can be cancelled.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        if (stopped) {
+            throw new IllegalStateException("Timer stopped");
+        }
+        Timeout t = new Timeout(this, task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        added.offer(t);
+        return t;
+    }
+
+    /**
+     * Stops the timer thread. Pending timeouts never run.
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (!stopped) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = deadline - System.nanoTime()) > 0 && !stopped) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            removeCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void transferAdded() {
+        Timeout t;
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK && (t = added.poll()) != null; i++) {
+            if (t.state.get() != Timeout.PENDING) {
+                continue;
+            }
+            long ticks = Math.max(0, (t.deadline - startTime) / tickNanos);
+            t.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(t);
+        }
+    }
+
+    /**
+     * A task scheduled on a {@link TimerWheel}.
+     */
+    public static class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimerWheel timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // only used by the timer thread
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+        private Bucket bucket;
+
+        private Timeout(TimerWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout, so its task will not run.
+         *
+         * @return false if the task has already run or the timeout was already cancelled.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.offer(this);
+            return true;
+        }
+
+        /**
+         * @return true if the task has run.
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(PENDING, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                Log.error("Timer task failed", t);
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of the timeouts of one slot of the wheel.
+     */
+    private static class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void expire() {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds <= 0) {
+                    remove(t);
+                    t.expire();
+                } else if (t.state.get() == Timeout.CANCELLED) {
+                    remove(t);
+                } else {
+                    t.remainingRounds--;
+                }
+                t = next;
+            }
+        }
+
+        void remove(Timeout t) {
+            if (t.bucket != this) {
+                return;
+            }
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            } else {
+                tail = t.prev;
+            }
+            t.next = null;
+            t.prev = null;
+            t.bucket = null;
+        }
+    }
+}
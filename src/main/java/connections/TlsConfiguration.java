@@ -0,0 +1,125 @@
+package connections;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * The TLS setup of a server: its key store, session resumption and ALPN protocols.
+ * <p>
+ * Clients that reconnect can skip the full handshake by resuming a session. Sessions are kept in a cache of
+ * {@link #setSessionCacheSize(int)} entries for {@link #setSessionTimeout(int)} seconds. With session tickets,
+ * the server instead hands the client its session encrypted with a key only the server knows, so resumption
+ * works without cache space. The JDK creates the ticket keys in memory and rotates them itself, so tickets
+ * do not survive a restart of the server and cannot be shared between instances. Tickets are only supported
+ * from Java 13, and are configured for the whole process with {@link #configureSessionTickets(boolean, int)}.
+ * <p>
+ * Handshakes and resumptions are counted by each connection, see {@link metrics.MetricsSnapshot#tlsResumptionRate()}.
+ */
+public class TlsConfiguration {
+
+    private final Path keyStore;
+    private final char[] password;
+    private int sessionCacheSize = 20_000;
+    private int sessionTimeout = 24 * 60 * 60;
+    private String[] applicationProtocols = {"h2", "http/1.1"};
+
+    /**
+     * Creates a TLS configuration with a key store holding the key and certificate of the server.
+     *
+     * @param keyStore the key store, in PKCS12 format if it ends with .p12 or .pfx, otherwise in JKS format.
+     * @param password the password of the key store and of the key.
+     */
+    public TlsConfiguration(Path keyStore, char[] password) {
+        this.keyStore = keyStore;
+        this.password = password.clone();
+    }
+
+    /**
+     * @param sessionCacheSize the largest number of sessions kept for resumption, or 0 for no limit.
+     * @return this configuration.
+     */
+    public TlsConfiguration setSessionCacheSize(int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+        return this;
+    }
+
+    /**
+     * @param seconds how long a session can be resumed after it was created, in seconds, or 0 for no limit.
+     * @return this configuration.
+     */
+    public TlsConfiguration setSessionTimeout(int seconds) {
+        this.sessionTimeout = seconds;
+        return this;
+    }
+
+    /**
+     * @param protocols the protocols offered with ALPN, in order of preference.
+     * @return this configuration.
+     */
+    public TlsConfiguration setApplicationProtocols(String... protocols) {
+        this.applicationProtocols = protocols.clone();
+        return this;
+    }
+
+    /**
+     * Enables or disables stateless session tickets for every SSL context of the process, by setting the system
+     * properties {@code jdk.tls.server.enableSessionTicketExtension} and {@code jdk.tls.server.statelessKeyTimeout}.
+     * The JDK reads them once, when TLS is first used, so this must be called at startup, before any SSL context
+     * is created. It has no effect before Java 13.
+     *
+     * @param enabled            true to resume sessions with tickets, false to only resume sessions in the cache.
+     * @param keyLifetimeSeconds how long a ticket key is used before the next one replaces it, in seconds.
+     */
+    public static void configureSessionTickets(boolean enabled, int keyLifetimeSeconds) {
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", Boolean.toString(enabled));
+        System.setProperty("jdk.tls.server.statelessKeyTimeout", Integer.toString(keyLifetimeSeconds));
+    }
+
+    /**
+     * Creates an SSL context with the key store and session settings of this configuration.
+     *
+     * @return the SSL context.
+     * @throws IOException              if the key store cannot be read.
+     * @throws GeneralSecurityException if the key store or its key cannot be loaded.
+     */
+    public SSLContext createContext() throws IOException, GeneralSecurityException {
+        String name = keyStore.getFileName().toString().toLowerCase();
+        KeyStore ks = KeyStore.getInstance(name.endsWith(".p12") || name.endsWith(".pfx") ? "PKCS12" : "JKS");
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            ks.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeout);
+        return context;
+    }
+
+    /**
+     * Creates a server socket with a new SSL context, offering the application protocols of this configuration.
+     *
+     * @param port the port to listen on, or 0 for any free port.
+     * @return the server socket.
+     * @throws IOException              if the port cannot be bound or the key store cannot be read.
+     * @throws GeneralSecurityException if the key store or its key cannot be loaded.
+     */
+    public SSLServerSocket createServerSocket(int port) throws IOException, GeneralSecurityException {
+        SSLServerSocket serverSocket = (SSLServerSocket) createContext().getServerSocketFactory().createServerSocket(port);
+        SSLParameters parameters = serverSocket.getSSLParameters();
+        parameters.setApplicationProtocols(applicationProtocols);
+        serverSocket.setSSLParameters(parameters);
+        return serverSocket;
+    }
+}
@@ -0,0 +1,52 @@
+package connections;
+
+/**
+ * A token bucket limiting how often something may happen, such as receiving a kind of frame.
+ * <p>
+ * The bucket holds up to a capacity of tokens and is refilled at a fixed rate.
+ * Each event takes one token, and is over the budget if the bucket is empty.
+ * A bucket is meant to be used by a single thread, such as the connection thread.
+ */
+public class TokenBucket {
+
+    private final long capacity;
+    private final long nanosPerToken;
+    private long tokens;
+    private long last;
+
+    /**
+     * Creates a full token bucket.
+     *
+     * @param capacity        the largest number of events allowed in a burst.
+     * @param tokensPerSecond the number of events allowed per second over time.
+     */
+    public TokenBucket(int capacity, int tokensPerSecond) {
+        this.capacity = capacity;
+        this.nanosPerToken = 1_000_000_000L / Math.max(1, tokensPerSecond);
+        this.tokens = capacity;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Takes a token from the bucket.
+     *
+     * @return false if the bucket is empty, meaning the event is over the budget.
+     */
+    public boolean tryTake() {
+        long now = System.nanoTime();
+        if (tokens >= capacity) {
+            last = now;
+        } else {
+            long refill = (now - last) / nanosPerToken;
+            if (refill > 0) {
+                tokens = Math.min(capacity, tokens + refill);
+                last += refill * nanosPerToken;
+            }
+        }
+        if (tokens > 0) {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+}
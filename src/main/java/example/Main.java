@@ -1,39 +1,60 @@
 package example;
 
-import javax.net.ServerSocketFactory;
-import javax.net.ssl.SSLParameters;
+import capture.FrameRecorder;
+import connections.Server;
+import connections.TlsConfiguration;
+
 import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Main {
 
     private static final int HTTP_PORT = 443;
     private static final String KEYSTORE_LOCATION = "src/main/resources/heltNy.jks";
     private static final String KEYSTORE_PASSWORD = "123456";
+    private static final long DRAIN_TIMEOUT_MILLIS = 30_000;
+    private static final int SESSION_CACHE_SIZE = 10_000;
+    private static final int SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+    private static final int TICKET_KEY_LIFETIME_SECONDS = 60 * 60;
+    private static final long CAPTURE_MAX_BYTES = 1L << 30;
 
     public static void main(String[] args) {
-
-        System.setProperty("javax.net.ssl.keyStore", KEYSTORE_LOCATION);
-        System.setProperty("javax.net.ssl.keyStorePassword", KEYSTORE_PASSWORD);
+        // process-wide, so set before anything uses TLS
+        TlsConfiguration.configureSessionTickets(true, TICKET_KEY_LIFETIME_SECONDS);
 
 //        System.setProperty("javax.net.debug", "ssl:record");
 
+        ExecutorService executor = Executors.newCachedThreadPool();
         try {
-            ServerSocketFactory ssf = SSLServerSocketFactory.getDefault();
-            SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(HTTP_PORT);
-            SSLParameters sp = serverSocket.getSSLParameters();
-            sp.setApplicationProtocols(new String[]{"h2"});
-            serverSocket.setSSLParameters(sp);
-
-            while (!Thread.currentThread().isInterrupted()) {
-                SSLSocket client = (SSLSocket) serverSocket.accept();
-                if (client.isConnected()) {
-                    Connection c = new Connection(client);
+            // reconnecting clients resume their session from the cache or a ticket instead of a full handshake
+            SSLServerSocket serverSocket = new TlsConfiguration(Paths.get(KEYSTORE_LOCATION), KEYSTORE_PASSWORD.toCharArray())
+                    .setSessionCacheSize(SESSION_CACHE_SIZE)
+                    .setSessionTimeout(SESSION_TIMEOUT_SECONDS)
+                    .createServerSocket(HTTP_PORT);
+
+            Server server = new Server(serverSocket, client -> new Connection(client, executor));
+            // java -Dhttp2.capture=frames.cap example.Main records all frames, see tools.Replay
+            String capture = System.getProperty("http2.capture");
+            FrameRecorder recorder = capture == null ? null : new FrameRecorder(Paths.get(capture), CAPTURE_MAX_BYTES);
+            server.setRecorder(recorder);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.drain(DRAIN_TIMEOUT_MILLIS);
+                if (recorder != null) {
+                    try {
+                        recorder.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
-            }
+            }));
+            server.serve();
         } catch (Throwable t) {
             t.printStackTrace();
+        } finally {
+            executor.shutdown();
         }
     }
 }
@@ -0,0 +1,30 @@
+package example;
+
+import handlers.FileHandler;
+import handlers.Request;
+import handlers.RequestHandler;
+import handlers.Response;
+import logging.Log;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Answers requests for the front page with a simple HTML document, and all other requests with 404.
+ */
+public class ProcessRequest implements RequestHandler {
+
+    private static final String DOCUMENT_ROOT = "src/main/resources";
+    private static final String DOCUMENT = "hello.html";
+
+    private final FileHandler files = new FileHandler(Paths.get(DOCUMENT_ROOT), DOCUMENT);
+
+    @Override
+    public Response handle(Request request) throws IOException {
+        Log.debug("{} {}", request.method(), request.path()); // not the headers, which may hold credentials
+        if ("/".equals(request.path())) {
+            return files.handle(request).header("cache-control", "max-age=60");
+        }
+        return new Response(404);
+    }
+}
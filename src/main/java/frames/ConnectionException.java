@@ -0,0 +1,18 @@
+package frames;
+
+/**
+ * A connection error, which closes the whole connection with a GOAWAY frame.
+ */
+public class ConnectionException extends Http2Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a connection error. {@link ErrorCode#error()} returns a preallocated one.
+     *
+     * @param errorCode the code to send in the GOAWAY frame.
+     */
+    public ConnectionException(ErrorCode errorCode) {
+        super(errorCode, 0);
+    }
+}
@@ -1,7 +1,6 @@
 package frames;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 import static frames.Flags.END_HEADERS;
 import static frames.FrameType.CONTINUATION;
@@ -54,6 +53,7 @@ import static frames.HeaderCompressor.compress;
 public class ContinuationFrame extends Frame {
 
     private ByteBuffer headerBlockFragment;
+    private ByteBuffer headerBlock; // HPACK-encoded once by the constructor that encodes, or null
 
     /**
      * Constructs a continuation frame.
@@ -67,7 +67,9 @@ public class ContinuationFrame extends Frame {
      * @param headerBlockFragment A header block fragment.
      */
     public ContinuationFrame(int streamId, boolean endHeaders, ByteBuffer headerBlockFragment) {
-        super(streamId, headerBlockFragment.remaining(), CONTINUATION, endHeaders ? END_HEADERS : 0);
+        super(streamId, 0, CONTINUATION, endHeaders ? END_HEADERS : 0);
+        this.headerBlock = compress(headerBlockFragment, false);
+        this.length = headerBlock.remaining();
         this.headerBlockFragment = headerBlockFragment;
     }
 
@@ -86,18 +88,12 @@ public class ContinuationFrame extends Frame {
     @Override
     public ByteBuffer payload() {
         ByteBuffer out = ByteBuffer.allocate(length);
-        out.put(compress(headerBlockFragment));
+        out.put(headerBlock != null ? headerBlock.duplicate() : compress(headerBlockFragment, false));
         return out.flip();
     }
 
     @Override
     public String toString() {
-        headerBlockFragment.rewind();
-        byte[] bytes = new byte[headerBlockFragment.remaining()];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = headerBlockFragment.get();
-        }
-        headerBlockFragment.rewind();
-        return super.toString() + ", headerBlockFragment={" + Arrays.toString(bytes) + "}";
+        return super.toString() + ", headerBlockFragment={" + summarize(headerBlockFragment) + "}";
     }
 }
@@ -58,11 +58,11 @@ public class DataFrame extends Frame {
      *                  Setting this flag causes the stream to enter one of the "half-closed" states or the "closed" state.
      */
     public DataFrame(int streamId, ByteBuffer data, short padLength, boolean endStream) {
-        super(streamId, ((padLength == 0) ? 1 : 0) + data.remaining() + padLength, DATA, combine((endStream ? END_STREAM : 0), (padLength == 0) ? 0 : PADDED));
+        super(streamId, ((padLength > 0) ? 1 : 0) + data.remaining() + padLength, DATA, combine((endStream ? END_STREAM : 0), (padLength == 0) ? 0 : PADDED));
         if (padLength > length) {
             throw PROTOCOL_ERROR.error();
         }
-        this.data = data;
+        this.data = data.slice();
         // TODO if a DATA frame is received whose stream is not in "open" or "half-closed (local)" state, the recipient MUST respond with a stream error (Section 5.4.2) of type STREAM_CLOSED.
         this.padLength = (short) (padLength & 0xff);
     }
@@ -90,19 +90,55 @@ public class DataFrame extends Frame {
     public DataFrame(byte flags, int streamId, ByteBuffer payload) {
         super(streamId, payload.remaining(), DATA, flags);
         if (isSet(flags, PADDED)) {
-            this.padLength = payload.get();
+            this.padLength = (short) (payload.get() & 0xff);
         } else {
             this.padLength = 0;
         }
+        if (padLength >= length) {
+            throw PROTOCOL_ERROR.error(); // the padding must leave room for the pad length field
+        }
         ByteBuffer slice = payload.slice();
         slice.limit(slice.limit() - padLength);
         this.data = slice;
     }
 
+    /**
+     * Splits the first bytes of data off this frame into a new frame.
+     * The new frame has no padding and never has the END_STREAM flag set,
+     * while this frame keeps the remaining data, its padding and its flags.
+     *
+     * @param size the number of data bytes to split off.
+     * @return a data frame with the first size bytes of data of this frame.
+     */
+    public DataFrame split(int size) {
+        ByteBuffer head = data.duplicate().rewind();
+        head.limit(size);
+        data.rewind().position(size);
+        data = data.slice();
+        length -= size;
+        return new DataFrame(streamId, head, false);
+    }
+
+    /**
+     * @return the data of this frame, excluding padding.
+     */
+    public ByteBuffer data() {
+        return data.duplicate().rewind();
+    }
+
+    /**
+     * @return the number of data bytes in this frame, excluding padding.
+     */
+    public int dataLength() {
+        return data.limit();
+    }
+
     @Override
     public ByteBuffer payload() {
         ByteBuffer out = ByteBuffer.allocate(length);
-        out.put((byte) padLength);
+        if (isSet(flags, PADDED)) {
+            out.put((byte) padLength);
+        }
         out.put(data.rewind());
         out.put(ByteBuffer.allocate(padLength));
         return out.flip();
@@ -110,12 +146,6 @@ public class DataFrame extends Frame {
 
     @Override
     public String toString() {
-        data.rewind();
-        byte[] bytes = new byte[data.remaining()];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = data.get();
-        }
-        data.rewind();
-        return super.toString() + ", padLength=" + padLength + ", data={" + new String(bytes).replaceAll("\\n", "\\\\n").replaceAll("\\r", "\\\\r") + "}";
+        return super.toString() + ", padLength=" + padLength + ", data={" + summarize(data) + "}";
     }
 }
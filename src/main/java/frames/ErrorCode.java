@@ -97,25 +97,39 @@ public enum ErrorCode {
     int code;
     String message;
 
+    private final ConnectionException error;
+
+    private static final ErrorCode[] BY_CODE = values();
+
     ErrorCode(int code, String message) {
         this.code = code;
         this.message = message;
+        this.error = new ConnectionException(this);
     }
 
     /**
      * Finds the corresponding error to a code.
      *
      * @param code the code of the error.
-     * @return the error with this code.
+     * @return the error with this code, or INTERNAL_ERROR for an unknown code.
      */
     public static ErrorCode from(int code) {
-        return values()[code];
+        // unknown codes must not trigger special behavior, so they are treated as INTERNAL_ERROR
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : INTERNAL_ERROR;
+    }
+
+    /**
+     * @return a preallocated connection error with this code, to be thrown.
+     */
+    public ConnectionException error() {
+        return error;
     }
 
     /**
-     * @return an error containing a message specific to the type of error.
+     * @param streamId the stream to reset.
+     * @return a stream error with this code, to be thrown.
      */
-    public Error error() {
-        throw new Error(message);
+    public StreamException streamError(int streamId) {
+        return new StreamException(this, streamId);
     }
 }
@@ -53,6 +53,8 @@ import java.nio.ByteBuffer;
  */
 public abstract class Frame {
 
+    private static final int MAX_SUMMARY_BYTES = 32;
+
     public int length;
     public final byte flags;
     public final FrameType type;
@@ -112,6 +114,35 @@ public abstract class Frame {
         return out.flip();
     }
 
+    /**
+     * Describes the content of a buffer for {@link #toString()}, without moving its position.
+     * At most 32 bytes are shown, with bytes that are not printable escaped.
+     *
+     * @param b The buffer to describe.
+     * @return A short description of the buffer.
+     */
+    protected static String summarize(ByteBuffer b) {
+        int n = b.limit();
+        int shown = Math.min(n, MAX_SUMMARY_BYTES);
+        StringBuilder sb = new StringBuilder(shown + 16);
+        for (int i = 0; i < shown; i++) {
+            int c = b.get(i) & 0xff;
+            if (c == '\r') {
+                sb.append("\\r");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c >= 0x20 && c < 0x7f) {
+                sb.append((char) c);
+            } else {
+                sb.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            }
+        }
+        if (n > shown) {
+            sb.append("... (").append(n).append(" bytes)");
+        }
+        return sb.toString();
+    }
+
     @Override
     public String toString() {
         return this.getClass().getName() + ": length=" + length + ", flags=0b" + Integer.toBinaryString(flags) + ", streamId=" + streamId;
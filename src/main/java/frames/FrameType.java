@@ -62,15 +62,29 @@ public enum FrameType {
      */
     CONTINUATION(0x9, ContinuationFrame.class);
 
-    byte code;
+    public final byte code;
     Class<?> c;
 
+    private static final FrameType[] BY_CODE = new FrameType[256];
+
+    static {
+        for (FrameType ft : values()) {
+            BY_CODE[ft.code & 0xff] = ft;
+        }
+    }
+
     FrameType(int code, Class<?> c) {
         this.code = (byte) code;
         this.c = c;
     }
 
+    /**
+     * Finds the frame type with a code.
+     *
+     * @param code the code of the frame type.
+     * @return the frame type with this code, or null for an unknown or extension frame type.
+     */
     public static FrameType from(byte code) {
-        return values()[code];
+        return BY_CODE[code & 0xff];
     }
 }
@@ -189,12 +189,6 @@ public class GoAwayFrame extends Frame {
 
     @Override
     public String toString() {
-        additionalData.rewind();
-        byte[] bytes = new byte[additionalData.remaining()];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = additionalData.get();
-        }
-        additionalData.rewind();
-        return super.toString() + ", lastStreamId=" + lastStreamId + ", errorCode=" + errorCode.message + ", additionalData={" + new String(bytes) + "}";
+        return super.toString() + ", lastStreamId=" + lastStreamId + ", errorCode=" + errorCode.message + ", additionalData={" + summarize(additionalData) + "}";
     }
 }
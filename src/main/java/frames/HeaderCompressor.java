@@ -2,6 +2,9 @@ package frames;
 
 import com.twitter.hpack.Decoder;
 import com.twitter.hpack.Encoder;
+import logging.Log;
+
+import static frames.ErrorCode.COMPRESSION_ERROR;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -10,63 +13,167 @@ import java.nio.ByteBuffer;
 
 /**
  * Compresses and decompresses headers.
+ * <p>
+ * The static methods use a fresh encoder or decoder for every header block, so their dynamic table is always empty.
+ * An instance keeps its encoder and decoder, and with them their dynamic tables, across header blocks,
+ * so it must see every header block of one direction of a connection, in order.
+ * A header block that cannot be decoded is a connection error of type COMPRESSION_ERROR, since the dynamic
+ * table can no longer be trusted.
  */
 public class HeaderCompressor {
 
-    private HeaderCompressor() {
+    /**
+     * The default size of the dynamic table, in octets.
+     */
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /**
+     * The size of the dynamic tables of the static methods, which start empty for every header block.
+     * Encoding with a table of 0 octets never adds to the table of the peer, so it is valid whatever
+     * SETTINGS_HEADER_TABLE_SIZE the peer has advertised, and a connection decoding with the static methods
+     * advertises it, so the peer does not refer to entries from earlier header blocks.
+     */
+    public static final int STATELESS_TABLE_SIZE = 0;
+
+    private final Encoder encoder;
+    private final Decoder decoder;
+
+    /**
+     * Creates a compressor with its own dynamic tables.
+     *
+     * @param headerTableSize the maximum size of the dynamic tables, in octets.
+     */
+    public HeaderCompressor(int headerTableSize) {
+        this.encoder = new Encoder(headerTableSize);
+        this.decoder = new Decoder(headerTableSize, headerTableSize);
     }
 
     /**
-     * Compresses a byte buffer with HPACK.
+     * The dynamic table size update setting the table of the peer to {@link #STATELESS_TABLE_SIZE} octets.
+     */
+    private static final byte STATELESS_TABLE_SIZE_UPDATE = 0x20;
+
+    /**
+     * Compresses a byte buffer with HPACK, without a dynamic table, as the start of a header block.
+     * The buffer holds one header per line, with the name and value separated by a colon.
      *
      * @param bb the byte buffer to compress.
      * @return a compressed version of the byte buffer.
      */
     public static ByteBuffer compress(ByteBuffer bb) {
+        return compress(bb, true);
+    }
+
+    /**
+     * Compresses a byte buffer with HPACK, without a dynamic table.
+     * The start of a header block begins with a dynamic table size update to {@link #STATELESS_TABLE_SIZE},
+     * which the peer requires once it has acknowledged a smaller table than its decoder started with.
+     *
+     * @param bb           the byte buffer to compress.
+     * @param startOfBlock whether the buffer starts a header block, rather than continuing one.
+     * @return a compressed version of the byte buffer.
+     */
+    public static ByteBuffer compress(ByteBuffer bb, boolean startOfBlock) {
+        ByteBuffer encoded = new HeaderCompressor(STATELESS_TABLE_SIZE).encode(bb);
+        if (!startOfBlock) {
+            return encoded;
+        }
+        ByteBuffer block = ByteBuffer.allocate(1 + encoded.remaining());
+        block.put(STATELESS_TABLE_SIZE_UPDATE).put(encoded);
+        return block.flip();
+    }
+
+    /**
+     * Decompresses a byte array, with a dynamic table that is empty. The table may still be used within
+     * the header block, by a peer that has not yet acknowledged a SETTINGS_HEADER_TABLE_SIZE of
+     * {@link #STATELESS_TABLE_SIZE}.
+     *
+     * @param b the byte array to decompress.
+     * @return the decompressed string.
+     * @throws ConnectionException COMPRESSION_ERROR if the header block cannot be decoded.
+     */
+    public static String decompress(byte[] b) {
+        return new HeaderCompressor(DEFAULT_TABLE_SIZE).decode(b);
+    }
+
+    /**
+     * Compresses a header block with HPACK, using and updating the dynamic table of this compressor.
+     * The buffer holds one header per line, with the name and value separated by a colon.
+     *
+     * @param bb the byte buffer to compress.
+     * @return a compressed version of the byte buffer.
+     */
+    public ByteBuffer encode(ByteBuffer bb) {
         bb.rewind();
-        Encoder encoder = new Encoder(4096);
         byte[] bytes = new byte[bb.remaining()];
         for (int i = 0; i < bytes.length; i++) {
             bytes[i] = bb.get();
         }
-        String string = new String(bytes).replaceAll(" ", "");
-        String[] split = string.split("[\\n\\r]+");
+        String[] split = new String(bytes).split("[\\n\\r]+");
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         try {
-            for (String s1 : split) {
-                String[] s1Split = s1.split(":", 3);
-                if (s1Split.length == 3)
-                    encoder.encodeHeader(os, (":" + s1Split[1]).getBytes(), s1Split[2].getBytes(), false);
-                else if (s1Split.length == 2)
-                    encoder.encodeHeader(os, s1Split[0].getBytes(), s1Split[1].getBytes(), false);
+            for (String line : split) {
+                // pseudo-header names start with a colon, so the separator is the first colon after it
+                int sep = line.indexOf(':', line.startsWith(":") ? 1 : 0);
+                if (sep > 0) {
+                    String name = line.substring(0, sep).trim();
+                    String value = line.substring(sep + 1).trim();
+                    encoder.encodeHeader(os, name.getBytes(), value.getBytes(), false);
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Error encoding header", e);
         }
         return ByteBuffer.wrap(os.toByteArray());
     }
 
     /**
-     * Decompresses a byte array.
+     * Decompresses a header block, using and updating the dynamic table of this compressor.
      *
      * @param b the byte array to decompress.
-     * @return the decompressed string.
+     * @return the decompressed string, with one header per line.
+     * @throws ConnectionException COMPRESSION_ERROR if the header block cannot be decoded.
      */
-    public static String decompress(byte[] b) {
-        final String[] s = {""};
-        Decoder decoder = new Decoder(4096, 4096);
-        ByteArrayInputStream baos = new ByteArrayInputStream(b);
+    public String decode(byte[] b) {
+        return decode(b, true);
+    }
+
+    /**
+     * Decompresses a fragment of a header block, using and updating the dynamic table of this compressor.
+     * A header split across fragments is decoded with the fragment that ends it.
+     *
+     * @param b          the fragment to decompress.
+     * @param endOfBlock whether the fragment ends the header block.
+     * @return the headers the fragment ends, with one header per line.
+     * @throws ConnectionException COMPRESSION_ERROR if the fragment cannot be decoded.
+     */
+    public String decode(byte[] b, boolean endOfBlock) {
+        StringBuilder sb = new StringBuilder();
+        ByteArrayInputStream is = new ByteArrayInputStream(b);
         try {
             decoder.decode(
-                    baos,
+                    is,
                     (name, value, sensitive)
-                            -> s[0] += new String(name) + ": " + new String(value) + "\r\n"
+                            -> sb.append(new String(name)).append(": ").append(new String(value)).append("\r\n")
             );
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Error decoding header", e);
+            throw COMPRESSION_ERROR.error();
+        }
+        if (endOfBlock) {
             decoder.endHeaderBlock();
-            baos.close();
-        } catch (IOException e) {
-            System.err.println("Error decoding header");
         }
-        return s[0];
+        return sb.toString();
+    }
+
+    /**
+     * Sets the maximum size of the dynamic table used to decode, once the peer has acknowledged it.
+     * When it shrinks below the size the peer encodes with, the next header block must start with
+     * a dynamic table size update, or it cannot be decoded.
+     *
+     * @param headerTableSize the acknowledged SETTINGS_HEADER_TABLE_SIZE, in octets.
+     */
+    public void setDecoderTableSize(int headerTableSize) {
+        decoder.setMaxHeaderTableSize(headerTableSize);
     }
 }
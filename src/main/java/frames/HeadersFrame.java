@@ -6,7 +6,6 @@ import static frames.ErrorCode.PROTOCOL_ERROR;
 import static frames.Flags.*;
 import static frames.FrameType.HEADERS;
 import static frames.HeaderCompressor.compress;
-import static frames.HeaderCompressor.decompress;
 
 
 /**
@@ -115,6 +114,7 @@ public class HeadersFrame extends Frame {
     public final boolean E;
     public final short weight;
     public final ByteBuffer headerBlockFragment;
+    private final ByteBuffer headerBlock; // HPACK-encoded once, as it is needed for the length as well as the payload
 
 
     /**
@@ -129,7 +129,9 @@ public class HeadersFrame extends Frame {
      * @param endStream           When set, bit 0 indicates that the header block is the last that the endpoint will send for the identified stream.
      */
     public HeadersFrame(int streamId, boolean endStream, boolean endHeaders, short padLength, ByteBuffer headerBlockFragment) {
-        super(streamId, ((padLength > 0) ? 1 : 0) + headerBlockFragment.remaining() + padLength, HEADERS, combine((endStream ? END_STREAM : 0), (endHeaders ? END_HEADERS : 0), ((padLength == 0) ? 0 : PADDED)));
+        super(streamId, 0, HEADERS, combine((endStream ? END_STREAM : 0), (endHeaders ? END_HEADERS : 0), ((padLength == 0) ? 0 : PADDED)));
+        this.headerBlock = compress(headerBlockFragment);
+        this.length = ((padLength > 0) ? 1 : 0) + headerBlock.remaining() + padLength;
         if (padLength > length) {
             throw PROTOCOL_ERROR.error();
         }
@@ -160,7 +162,9 @@ public class HeadersFrame extends Frame {
      * @param endStream           When set, bit 0 indicates that the header block is the last that the endpoint will send for the identified stream.
      */
     public HeadersFrame(int streamId, boolean endStream, boolean endHeaders, short padLength, ByteBuffer headerBlockFragment, boolean E, int streamDependency, short weight) {
-        super(streamId, ((padLength > 0) ? 1 : 0) + 5 + (compress(headerBlockFragment)).remaining() + padLength, HEADERS, combine(PRIORITY, (endStream ? END_STREAM : 0), (endHeaders ? END_HEADERS : 0), ((padLength == 0) ? 0 : PADDED)));
+        super(streamId, 0, HEADERS, combine(PRIORITY, (endStream ? END_STREAM : 0), (endHeaders ? END_HEADERS : 0), ((padLength == 0) ? 0 : PADDED)));
+        this.headerBlock = compress(headerBlockFragment);
+        this.length = ((padLength > 0) ? 1 : 0) + 5 + headerBlock.remaining() + padLength;
         if (padLength > length) {
             throw PROTOCOL_ERROR.error();
         }
@@ -179,6 +183,20 @@ public class HeadersFrame extends Frame {
      * @param payload  the payload of this frame.
      */
     public HeadersFrame(byte flags, int streamId, ByteBuffer payload) {
+        this(flags, streamId, payload, new HeaderCompressor(HeaderCompressor.DEFAULT_TABLE_SIZE));
+    }
+
+    /**
+     * Crates a headers frame with the specified flags, streamId and payload, decoding its header block
+     * with the dynamic table of a connection.
+     *
+     * @param flags      the flags of this frame.
+     * @param streamId   the stream id of this frame.
+     * @param payload    the payload of this frame.
+     * @param compressor the compressor holding the dynamic table the peer encodes against.
+     * @throws ConnectionException COMPRESSION_ERROR if the header block cannot be decoded.
+     */
+    public HeadersFrame(byte flags, int streamId, ByteBuffer payload, HeaderCompressor compressor) {
         super(streamId, 0, HEADERS, flags);
         if (Flags.isSet(flags, PADDED)) {
             this.padLength = (short) (payload.get() & 0xff);
@@ -197,13 +215,17 @@ public class HeadersFrame extends Frame {
             this.streamDependency = -1;
             this.weight = 0;
         }
+        if (padLength > payload.remaining()) {
+            throw PROTOCOL_ERROR.error(); // the padding is longer than what the frame has left
+        }
         payload.limit(payload.limit() - padLength);
         byte[] block = new byte[payload.remaining()];
         for (int i = 0; i < block.length; i++) {
             block[i] = payload.get();
         }
         this.length += block.length;
-        this.headerBlockFragment = ByteBuffer.wrap(decompress(block).getBytes());
+        this.headerBlock = ByteBuffer.wrap(block);
+        this.headerBlockFragment = ByteBuffer.wrap(compressor.decode(block, Flags.isSet(flags, END_HEADERS)).getBytes());
     }
 
 
@@ -217,23 +239,15 @@ public class HeadersFrame extends Frame {
             out.putInt(E ? streamDependency | -2147483648 : streamDependency); // -2147483648 is only the first bit
             out.put((byte) ((weight - 1) & 0xff));
         }
-//        out.put(headerBlockFragment);
-        out.put(compress(headerBlockFragment));
+        out.put(headerBlock.duplicate());
         if (Flags.isSet(this.flags, PADDED)) {
             out.put(ByteBuffer.allocate(padLength));
         }
-        headerBlockFragment.rewind();
         return out.flip();
     }
 
     @Override
     public String toString() {
-        headerBlockFragment.rewind();
-        byte[] bytes = new byte[headerBlockFragment.remaining()];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = headerBlockFragment.get();
-        }
-        headerBlockFragment.rewind();
-        return super.toString() + ", padLength=" + padLength + ", E=" + E + ", streamDependency=" + streamDependency + ", weight=" + weight + ", headerBlockFragment={" + new String(bytes).replaceAll("\\r", "\\\\r").replaceAll("\\n", "\\\\n") + "}";
+        return super.toString() + ", padLength=" + padLength + ", E=" + E + ", streamDependency=" + streamDependency + ", weight=" + weight + ", headerBlockFragment={" + summarize(headerBlockFragment) + "}";
     }
 }
@@ -0,0 +1,34 @@
+package frames;
+
+/**
+ * An HTTP/2 protocol error, detected while handling a frame.
+ * <p>
+ * The exception has no stack trace, since it is part of the normal handling of a misbehaving peer.
+ * Instances carry no other state, so they may be preallocated and thrown again.
+ */
+public abstract class Http2Exception extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The code sent to the peer in the RST_STREAM or GOAWAY frame.
+     */
+    public final ErrorCode errorCode;
+
+    /**
+     * The stream the error concerns, or 0 for the connection as a whole.
+     */
+    public final int streamId;
+
+    /**
+     * Creates a protocol error without a stack trace.
+     *
+     * @param errorCode the code to send to the peer.
+     * @param streamId  the stream the error concerns, or 0 for the connection.
+     */
+    Http2Exception(ErrorCode errorCode, int streamId) {
+        super(errorCode.message, null, false, false);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+}
@@ -1,7 +1,6 @@
 package frames;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Random;
 
 import static frames.Flags.ACK;
@@ -93,25 +92,20 @@ public class PingFrame extends Frame {
      */
     public PingFrame(byte flags, int streamId, ByteBuffer payload) {
         super(streamId, payload.remaining(), PING, flags);
-        this.opaqueData = payload.rewind();
+        // the payload may be reused once the frame is handled, while an acknowledgement sends the opaque data back
+        this.opaqueData = ByteBuffer.allocate(payload.remaining()).put(payload.rewind()).flip();
     }
 
 
     @Override
     public ByteBuffer payload() {
         ByteBuffer out = ByteBuffer.allocate(length);
-        out.put(opaqueData);
+        out.put(opaqueData.duplicate());
         return out.flip();
     }
 
     @Override
     public String toString() {
-        opaqueData.rewind();
-        byte[] bytes = new byte[opaqueData.remaining()];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = opaqueData.get();
-        }
-        opaqueData.rewind();
-        return super.toString() + ", opaqueData={" + Arrays.toString(bytes) + "}";
+        return super.toString() + ", opaqueData={" + summarize(opaqueData) + "}";
     }
 }
@@ -2,6 +2,7 @@ package frames;
 
 import java.nio.ByteBuffer;
 
+import static frames.ErrorCode.PROTOCOL_ERROR;
 import static frames.Flags.*;
 import static frames.FrameType.PUSH_PROMISE;
 import static frames.HeaderCompressor.compress;
@@ -117,6 +118,7 @@ public class PushPromiseFrame extends Frame {
     public final short padLength;
     public final int promisedStreamId;
     public final ByteBuffer headerBlockFragment;
+    private final ByteBuffer headerBlock; // HPACK-encoded once by the constructor that encodes, or null
 
     /**
      * Constructs a push promise frame.
@@ -131,11 +133,13 @@ public class PushPromiseFrame extends Frame {
      * @param endHeaders          When set, bit 2 indicates that this frame contains an entire header block and is not followed by any CONTINUATION frames.
      */
     public PushPromiseFrame(int streamId, short padLength, int promisedStreamID, ByteBuffer headerBlockFragment, boolean endHeaders) {
-        super(streamId, ((padLength > 0) ? 1 : 0) + 4 + compress(headerBlockFragment).remaining() + padLength, PUSH_PROMISE, combine((padLength != 0) ? PADDED : 0, (endHeaders ? END_HEADERS : 0)));
+        super(streamId, 0, PUSH_PROMISE, combine((padLength != 0) ? PADDED : 0, (endHeaders ? END_HEADERS : 0)));
+        this.headerBlock = compress(headerBlockFragment);
+        this.length = ((padLength > 0) ? 1 : 0) + 4 + headerBlock.remaining() + padLength;
         this.padLength = (short) (padLength & 0xff);
         this.promisedStreamId = promisedStreamID;
         this.headerBlockFragment = headerBlockFragment.rewind();
-        // TODO ensure SETTINGS_ENABLE_PUSH is not disabled when sending
+        // SETTINGS_ENABLE_PUSH is checked by the connection when sending
     }
 
     /**
@@ -147,11 +151,15 @@ public class PushPromiseFrame extends Frame {
      */
     public PushPromiseFrame(byte flags, int streamId, ByteBuffer payload) {
         super(streamId, payload.remaining(), PUSH_PROMISE, flags);
-        this.padLength = (short) (payload.get() & 0xff);
+        this.padLength = Flags.isSet(flags, PADDED) ? (short) (payload.get() & 0xff) : 0;
         this.promisedStreamId = payload.getInt() & 2147483647;
+        if (padLength > payload.remaining()) {
+            throw PROTOCOL_ERROR.error(); // the padding is longer than what the frame has left
+        }
         ByteBuffer slice = payload.slice();
         slice.limit(slice.limit() - padLength);
         this.headerBlockFragment = slice;
+        this.headerBlock = null;
 
     }
 
@@ -163,7 +171,7 @@ public class PushPromiseFrame extends Frame {
         }
         out.putInt(promisedStreamId & Integer.MAX_VALUE);
 
-        out.put(compress(headerBlockFragment));
+        out.put(headerBlock != null ? headerBlock.duplicate() : compress(headerBlockFragment));
         if (Flags.isSet(this.flags, PADDED)) {
             out.put(ByteBuffer.allocate(padLength));
         }
@@ -173,12 +181,6 @@ public class PushPromiseFrame extends Frame {
 
     @Override
     public String toString() {
-        headerBlockFragment.rewind();
-        byte[] bytes = new byte[headerBlockFragment.remaining()];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = headerBlockFragment.get();
-        }
-        headerBlockFragment.rewind();
-        return super.toString() + ", padLength=" + padLength + ", promisedStreamId=" + promisedStreamId + ", headerBlockFragment={" + new String(bytes).replaceAll("\\r", "\\\\r").replaceAll("\\n", "\\\\n") + "}";
+        return super.toString() + ", padLength=" + padLength + ", promisedStreamId=" + promisedStreamId + ", headerBlockFragment={" + summarize(headerBlockFragment) + "}";
     }
 }
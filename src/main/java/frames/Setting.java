@@ -91,12 +91,26 @@ public enum Setting {
     public final short code;
     public final int defaultValue;
 
+    private static final Setting[] BY_CODE = new Setting[7];
+
+    static {
+        for (Setting s : values()) {
+            BY_CODE[s.code] = s;
+        }
+    }
+
     Setting(int code, int defaultValue) {
         this.code = (short) code;
         this.defaultValue = defaultValue;
     }
 
+    /**
+     * Finds the setting with an identifier.
+     *
+     * @param code the identifier of the setting.
+     * @return the setting with this identifier, or null for an unknown setting.
+     */
     public static Setting from(short code) {
-        return values()[code - 1];
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
     }
 }
@@ -102,7 +102,9 @@ public class SettingsFrame extends Frame {
         while (payload.hasRemaining()) {
             Setting set = Setting.from(payload.getShort());
             int val = payload.getInt();
-            sets.setValue(set, val);
+            if (set != null) {
+                sets.setValue(set, val); // unknown settings must be ignored
+            }
         }
         this.settings = sets;
     }
@@ -0,0 +1,19 @@
+package frames;
+
+/**
+ * A stream error, which resets only the stream it concerns with a RST_STREAM frame.
+ */
+public class StreamException extends Http2Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a stream error.
+     *
+     * @param errorCode the code to send in the RST_STREAM frame.
+     * @param streamId  the stream to reset.
+     */
+    public StreamException(ErrorCode errorCode, int streamId) {
+        super(errorCode, streamId);
+    }
+}
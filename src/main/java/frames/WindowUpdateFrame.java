@@ -109,7 +109,7 @@ public class WindowUpdateFrame extends Frame {
     public ByteBuffer payload() {
         ByteBuffer out = ByteBuffer.allocate(length);
         out.putInt(windowSizeIncrement);
-        return out;
+        return out.flip();
     }
 
     @Override
@@ -0,0 +1,72 @@
+package handlers;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A publisher of body buffers that are already in memory.
+ * Each subscriber receives duplicates of the buffers, so the publisher may be subscribed to more than once.
+ */
+public class BufferPublisher implements Flow.Publisher<ByteBuffer> {
+
+    private final List<ByteBuffer> buffers;
+
+    /**
+     * Creates a publisher of buffers.
+     *
+     * @param buffers the buffers to publish, in order.
+     */
+    public BufferPublisher(List<ByteBuffer> buffers) {
+        this.buffers = buffers;
+    }
+
+    /**
+     * Creates a publisher of a single buffer.
+     *
+     * @param buffer the buffer to publish.
+     */
+    public BufferPublisher(ByteBuffer buffer) {
+        this(List.of(buffer));
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger wip = new AtomicInteger();
+            private int index = 0;
+            private volatile boolean cancelled = false;
+
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancelled = true;
+                    subscriber.onError(new IllegalArgumentException("Non-positive request"));
+                    return;
+                }
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+                if (wip.getAndIncrement() != 0) {
+                    return;
+                }
+                do {
+                    while (!cancelled && demand.get() > 0 && index < buffers.size()) {
+                        demand.decrementAndGet();
+                        subscriber.onNext(buffers.get(index++).duplicate());
+                    }
+                    if (!cancelled && index == buffers.size()) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                } while (wip.decrementAndGet() != 0);
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+            }
+        });
+    }
+}
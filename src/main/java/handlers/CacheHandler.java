@@ -0,0 +1,469 @@
+package handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the responses of another handler in memory, and answers repeated GET and HEAD requests from the cache.
+ * <p>
+ * Responses to GET requests are keyed on :authority, :path and the request headers named by their vary header,
+ * and HEAD requests are answered from them as well. Responses are only stored if the max-age or s-maxage
+ * of their cache-control header keeps them fresh for some time, and they are not marked no-store, no-cache
+ * or private. The cache is bounded by the total size of the stored responses, and the least recently used paths
+ * are evicted first. A body publisher is recorded as it is sent, and only stored once it completes.
+ * <p>
+ * A hit is answered with the stored headers, with an age header, and the stored buffers, without running the handler.
+ * A request with an if-none-match header matching the etag of the response is answered with 304 and no body,
+ * whether the response comes from the cache or the handler. A body publisher is then never read,
+ * so such a response is not stored.
+ * A request that changes a path, such as a POST, removes the responses for it.
+ */
+public class CacheHandler implements RequestHandler {
+
+    private static final int NOT_MODIFIED = 304;
+    private static final String[] NOT_MODIFIED_HEADERS = {"etag", "cache-control", "vary", "expires", "content-location"};
+
+    private final RequestHandler handler;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Variants> paths = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache.
+     *
+     * @param handler       the handler whose responses are cached.
+     * @param maxBytes      the largest total size of the stored responses, in octets.
+     * @param maxEntryBytes the largest response that is stored, in octets.
+     */
+    public CacheHandler(RequestHandler handler, long maxBytes, long maxEntryBytes) {
+        this.handler = handler;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    }
+
+    /**
+     * Creates a cache that stores responses of up to an eighth of its size.
+     *
+     * @param handler  the handler whose responses are cached.
+     * @param maxBytes the largest total size of the stored responses, in octets.
+     */
+    public CacheHandler(RequestHandler handler, long maxBytes) {
+        this(handler, maxBytes, maxBytes / 8);
+    }
+
+    @Override
+    public Response handle(Request request) throws IOException {
+        String method = request.method();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            Response response = handler.handle(request);
+            if (response.status < 400 && !"OPTIONS".equals(method) && !"TRACE".equals(method)) {
+                invalidate(request);
+            }
+            return response;
+        }
+        String requestCacheControl = request.header("cache-control");
+        if (request.header("authorization") != null || request.header("range") != null
+                || hasDirective(requestCacheControl, "no-store")) {
+            return handler.handle(request);
+        }
+        String path = key(request);
+        if (!hasDirective(requestCacheControl, "no-cache") && !"0".equals(directive(requestCacheControl, "max-age"))) {
+            Entry entry = lookup(path, request);
+            if (entry != null) {
+                hits.increment();
+                return entry.respond(request, head);
+            }
+        }
+        misses.increment();
+        Response response = handler.handle(request);
+        long ttl = freshness(response);
+        if (head || ttl <= 0) {
+            return response;
+        }
+        String[] vary = varyNames(response.header("vary"));
+        if (vary == null) {
+            return response;
+        }
+        boolean notModified = etagMatches(request.header("if-none-match"), response.header("etag"));
+        ByteBuffer body = response.body();
+        Flow.Publisher<ByteBuffer> publisher = response.publisher();
+        if (body != null || publisher == null) {
+            List<ByteBuffer> buffers = body != null ? Collections.singletonList(copy(body)) : Collections.emptyList();
+            Entry entry = new Entry(response, vary, request, buffers, ttl);
+            if (entry.size <= maxEntryBytes) {
+                store(path, entry);
+            }
+        } else if (!notModified) {
+            response.body(subscriber -> publisher.subscribe(new Recorder(subscriber, path, response, vary, request, ttl)));
+        }
+        // a body publisher is never subscribed to for a 304, so that response is not stored
+        return notModified ? notModified(response.headers()) : response;
+    }
+
+    /**
+     * @return the number of requests answered from the cache.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of cacheable requests passed on to the handler.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of paths evicted to make room for others.
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the total size of the stored responses, in octets.
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    /**
+     * Removes all stored responses.
+     */
+    public synchronized void clear() {
+        paths.clear();
+        bytes = 0;
+    }
+
+    private static String key(Request request) {
+        return request.authority() + ' ' + request.path();
+    }
+
+    private synchronized Entry lookup(String path, Request request) {
+        Variants variants = paths.get(path);
+        if (variants == null) {
+            return null;
+        }
+        for (Iterator<Entry> it = variants.entries.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.isStale()) {
+                it.remove();
+                bytes -= entry.size;
+            } else if (entry.matches(request)) {
+                return entry;
+            }
+        }
+        if (variants.entries.isEmpty()) {
+            paths.remove(path);
+        }
+        return null;
+    }
+
+    private synchronized void store(String path, Entry entry) {
+        Variants variants = paths.computeIfAbsent(path, p -> new Variants());
+        for (Iterator<Entry> it = variants.entries.iterator(); it.hasNext(); ) {
+            Entry old = it.next();
+            if (old.isStale() || old.sameVariant(entry)) {
+                it.remove();
+                bytes -= old.size;
+            }
+        }
+        variants.entries.add(entry);
+        bytes += entry.size;
+        Iterator<Map.Entry<String, Variants>> lru = paths.entrySet().iterator();
+        while (bytes > maxBytes && lru.hasNext()) {
+            Variants evicted = lru.next().getValue();
+            lru.remove();
+            for (Entry e : evicted.entries) {
+                bytes -= e.size;
+            }
+            evictions.increment();
+        }
+    }
+
+    private synchronized void invalidate(Request request) {
+        Variants variants = paths.remove(key(request));
+        if (variants != null) {
+            for (Entry e : variants.entries) {
+                bytes -= e.size;
+            }
+        }
+    }
+
+    /**
+     * @return how long a response may be served from the cache, in milliseconds, or 0 if it must not be stored.
+     */
+    private static long freshness(Response response) {
+        int status = response.status;
+        if (status != 200 && status != 203 && status != 204 && status != 300 && status != 301
+                && status != 404 && status != 410) {
+            return 0;
+        }
+        if (response.header("set-cookie") != null) {
+            return 0;
+        }
+        String cacheControl = response.header("cache-control");
+        if (cacheControl == null || hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "no-cache")
+                || hasDirective(cacheControl, "private")) {
+            return 0;
+        }
+        String maxAge = directive(cacheControl, "s-maxage");
+        if (maxAge == null) {
+            maxAge = directive(cacheControl, "max-age");
+        }
+        try {
+            return maxAge == null ? 0 : Math.max(0, Long.parseLong(maxAge)) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the names of the request headers in a vary header, in lower case, or null if it is "*".
+     */
+    private static String[] varyNames(String vary) {
+        if (vary == null || vary.trim().isEmpty()) {
+            return new String[0];
+        }
+        String[] names = vary.split(",");
+        for (int i = 0; i < names.length; i++) {
+            names[i] = names[i].trim().toLowerCase(Locale.ROOT);
+            if (names[i].equals("*")) {
+                return null;
+            }
+        }
+        return names;
+    }
+
+    private static boolean hasDirective(String cacheControl, String name) {
+        return cacheControl != null && directive(cacheControl, name) != null;
+    }
+
+    /**
+     * @return the value of a cache-control directive, without quotes, an empty string if it has none,
+     * or null if the directive is not present.
+     */
+    private static String directive(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return null;
+        }
+        for (String d : cacheControl.split(",")) {
+            int eq = d.indexOf('=');
+            String n = (eq < 0 ? d : d.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+            if (n.equals(name)) {
+                return eq < 0 ? "" : d.substring(eq + 1).trim().replace("\"", "");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares an if-none-match header with an etag, by the weak comparison of RFC 7232 2.3.2.
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        String tag = opaque(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String c = candidate.trim();
+            if (c.equals("*") || opaque(c).equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        return copy.put(buffer.duplicate()).flip();
+    }
+
+    /**
+     * The stored responses for one path, one for each combination of the request headers they vary by.
+     */
+    private static class Variants {
+        final List<Entry> entries = new ArrayList<>(1);
+    }
+
+    /**
+     * A stored response, with the values of the request headers it varies by.
+     */
+    private static class Entry {
+        final int status;
+        final Map<String, String> headers;
+        final List<ByteBuffer> body;
+        final long bodyLength;
+        final Map<String, String> varied = new HashMap<>();
+        final long storedAt = System.currentTimeMillis();
+        final long expiresAt;
+        final long size;
+
+        Entry(Response response, String[] vary, Request request, List<ByteBuffer> body, long ttl) {
+            this.status = response.status;
+            this.headers = new LinkedHashMap<>(response.headers());
+            this.body = body;
+            this.expiresAt = storedAt + ttl;
+            long length = 0;
+            for (ByteBuffer b : body) {
+                length += b.remaining();
+            }
+            this.bodyLength = length;
+            long size = length;
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                size += h.getKey().length() + h.getValue().length() + 32;
+            }
+            for (String name : vary) {
+                varied.put(name, request.header(name));
+            }
+            this.size = size;
+        }
+
+        boolean isStale() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+
+        boolean matches(Request request) {
+            for (Map.Entry<String, String> v : varied.entrySet()) {
+                String value = request.header(v.getKey());
+                if (value == null ? v.getValue() != null : !value.equals(v.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean sameVariant(Entry other) {
+            return varied.equals(other.varied);
+        }
+
+        /**
+         * @return a response with the stored headers and body, or a 304 response if the request has the etag.
+         */
+        Response respond(Request request, boolean head) {
+            if (etagMatches(request.header("if-none-match"), headers.get("etag"))) {
+                return notModified(headers);
+            }
+            Response response = new Response(status);
+            headers.forEach(response::header);
+            if (!head && body.size() == 1) {
+                response.body(body.get(0).duplicate());
+            } else if (!head && !body.isEmpty()) {
+                response.body(new BufferPublisher(body));
+            }
+            if (status >= 200 && status != 204) {
+                // a 1xx or 204 response has no content, so it must not have a content-length (RFC 7230 3.3.2)
+                response.header("content-length", Long.toString(bodyLength));
+            }
+            return response.header("age", Long.toString((System.currentTimeMillis() - storedAt) / 1000));
+        }
+    }
+
+    /**
+     * @param headers the headers of a response.
+     * @return a 304 response with the headers of the response a 304 must repeat.
+     */
+    private static Response notModified(Map<String, String> headers) {
+        Response response = new Response(NOT_MODIFIED);
+        for (String name : NOT_MODIFIED_HEADERS) {
+            String value = headers.get(name);
+            if (value != null) {
+                response.header(name, value);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Passes a body on to its subscriber, and stores the response once the body has completed,
+     * unless it turned out to be too large.
+     */
+    private class Recorder implements Flow.Subscriber<ByteBuffer> {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final String path;
+        private final Response response;
+        private final String[] vary;
+        private final Request request;
+        private final long ttl;
+        private volatile List<ByteBuffer> buffers = new ArrayList<>();
+        private long length = 0;
+
+        Recorder(Flow.Subscriber<? super ByteBuffer> subscriber, String path, Response response, String[] vary,
+                 Request request, long ttl) {
+            this.subscriber = subscriber;
+            this.path = path;
+            this.response = response;
+            this.vary = vary;
+            this.request = request;
+            this.ttl = ttl;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    buffers = null; // a body cut short is never stored
+                    subscription.cancel();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            List<ByteBuffer> b = buffers;
+            if (b != null) {
+                length += item.remaining();
+                if (length > maxEntryBytes) {
+                    buffers = null;
+                } else {
+                    b.add(copy(item));
+                }
+            }
+            subscriber.onNext(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            buffers = null;
+            subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            List<ByteBuffer> b = buffers;
+            if (b != null) {
+                Entry entry = new Entry(response, vary, request, b, ttl);
+                if (entry.size <= maxEntryBytes) {
+                    store(path, entry);
+                }
+            }
+            subscriber.onComplete();
+        }
+    }
+}
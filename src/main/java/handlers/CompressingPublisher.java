@@ -0,0 +1,160 @@
+package handlers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A publisher of the compressed buffers of another body publisher.
+ * <p>
+ * Buffers are compressed as they arrive and the next one is only requested from the body once the compressed
+ * data has been requested, so the body is compressed as a stream without being held in memory.
+ * Buffers the deflater keeps to itself are not published, since the deflater only writes out full blocks.
+ * Each subscriber gets its own compressor, with a deflater from the pool for as long as the body lasts.
+ */
+class CompressingPublisher implements Flow.Publisher<ByteBuffer> {
+
+    private final Flow.Publisher<ByteBuffer> body;
+    private final DeflaterPool pool;
+    private final boolean gzip;
+
+    /**
+     * @param body the body to compress.
+     * @param pool the pool to take deflaters from.
+     * @param gzip true for gzip, false for deflate.
+     */
+    CompressingPublisher(Flow.Publisher<ByteBuffer> body, DeflaterPool pool, boolean gzip) {
+        this.body = body;
+        this.pool = pool;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        body.subscribe(new Bridge(subscriber));
+    }
+
+    /**
+     * Subscribes to the body on behalf of one subscriber, and is the subscription of that subscriber.
+     */
+    private class Bridge implements Flow.Subscriber<ByteBuffer>, Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final ConcurrentLinkedQueue<ByteBuffer> compressed = new ConcurrentLinkedQueue<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private Compressor compressor;
+        private Flow.Subscription upstream;
+        private volatile boolean requested = false;
+        private volatile boolean done = false;
+        private volatile boolean cancelled = false;
+        private volatile Throwable error;
+        private boolean stopped = false;
+        private boolean terminated = false;
+
+        Bridge(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            upstream = subscription;
+            compressor = new Compressor(pool, gzip);
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                ByteBuffer out = compressor.compress(item);
+                if (out.hasRemaining()) {
+                    compressed.add(out);
+                }
+            }
+            requested = false;
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            stop();
+            error = throwable;
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                stopped = true;
+                compressed.add(compressor.finish());
+            }
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                stop();
+                upstream.cancel();
+                error = new IllegalArgumentException("Non-positive request");
+                drain();
+                return;
+            }
+            demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            stop();
+            upstream.cancel();
+        }
+
+        /**
+         * Returns the deflater to the pool, after which buffers of the body are ignored.
+         */
+        private synchronized void stop() {
+            stopped = true;
+            compressor.release();
+        }
+
+        /**
+         * Publishes compressed buffers while there is demand, and requests the next buffer of the body
+         * when they run out. Only runs on one thread at a time.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (!terminated && !cancelled) {
+                    if (error != null) {
+                        terminated = true;
+                        subscriber.onError(error);
+                    } else if (demand.get() > 0 && !compressed.isEmpty()) {
+                        demand.decrementAndGet();
+                        subscriber.onNext(compressed.poll());
+                    } else if (done && compressed.isEmpty()) {
+                        terminated = true;
+                        subscriber.onComplete();
+                    } else if (demand.get() > 0 && !done && !requested) {
+                        requested = true;
+                        upstream.request(1);
+                    } else {
+                        break;
+                    }
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Flow;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the responses of another handler with gzip or deflate, when the request accepts it.
+ * <p>
+ * The coding is chosen by the qvalues of the accept-encoding header of the request, preferring gzip.
+ * Only responses with a compressible content-type are compressed, and bodies smaller than the threshold
+ * are sent as they are, since compression does not pay for itself on a few hundred octets.
+ * A body in memory is compressed at once and keeps its content-length, while a body publisher is compressed
+ * as a stream, one buffer at a time, as the compressed data is requested.
+ * Deflaters come from a pool, so their native state is reused instead of allocated for every response.
+ * <pre>{@code
+ * new ServerConnection(socket, new CompressionHandler(handler), executor);
+ * }</pre>
+ */
+public class CompressionHandler implements RequestHandler {
+
+    /**
+     * The smallest body that is compressed, in octets.
+     */
+    public static final int DEFAULT_MIN_LENGTH = 1024;
+
+    private static final int POOL_CAPACITY = 64;
+    private static final Set<String> COMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList(
+            "application/json", "application/javascript", "application/xml", "application/xhtml+xml",
+            "application/x-www-form-urlencoded", "image/svg+xml"
+    ));
+
+    private final RequestHandler handler;
+    private final int minLength;
+    private final DeflaterPool gzipPool;
+    private final DeflaterPool deflatePool;
+
+    /**
+     * Creates a compression handler.
+     *
+     * @param handler   the handler whose responses are compressed.
+     * @param level     the compression level, from 1 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param minLength the smallest body that is compressed, in octets.
+     */
+    public CompressionHandler(RequestHandler handler, int level, int minLength) {
+        this.handler = handler;
+        this.minLength = minLength;
+        this.gzipPool = new DeflaterPool(level, true, POOL_CAPACITY);
+        this.deflatePool = new DeflaterPool(level, false, POOL_CAPACITY);
+    }
+
+    /**
+     * Creates a compression handler with the default compression level and threshold.
+     *
+     * @param handler the handler whose responses are compressed.
+     */
+    public CompressionHandler(RequestHandler handler) {
+        this(handler, Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_LENGTH);
+    }
+
+    @Override
+    public Response handle(Request request) throws IOException {
+        Response response = handler.handle(request);
+        if (!isCompressible(request, response)) {
+            return response;
+        }
+        String coding = negotiate(request.header("accept-encoding"));
+        if (coding == null) {
+            response.header("vary", vary(response.header("vary")));
+            return response;
+        }
+        boolean gzip = coding.equals("gzip");
+        DeflaterPool pool = gzip ? gzipPool : deflatePool;
+        ByteBuffer body = response.body();
+        if (body != null) {
+            Compressor compressor = new Compressor(pool, gzip);
+            ByteBuffer compressed = concat(compressor.compress(body), compressor.finish());
+            response.body(compressed);
+        } else {
+            response.body(new CompressingPublisher(response.publisher(), pool, gzip));
+        }
+        // the compressed body is another representation, so ranges and strong validators no longer apply to it
+        response.header("accept-ranges", "none");
+        String etag = response.header("etag");
+        if (etag != null && !etag.startsWith("W/")) {
+            response.header("etag", "W/" + etag);
+        }
+        return response.header("content-encoding", coding).header("vary", vary(response.header("vary")));
+    }
+
+    /**
+     * @return true if the response has a body of a compressible type, which is not encoded already
+     * and not smaller than the threshold.
+     */
+    private boolean isCompressible(Request request, Response response) {
+        int status = response.status;
+        if (status < 200 || status == 204 || status == 206 || status == 304 || "HEAD".equals(request.method())) {
+            return false;
+        }
+        if (response.header("content-encoding") != null || response.header("content-range") != null) {
+            return false;
+        }
+        String cacheControl = response.header("cache-control");
+        if (cacheControl != null && cacheControl.toLowerCase(Locale.ROOT).contains("no-transform")) {
+            return false;
+        }
+        ByteBuffer body = response.body();
+        if (body == null && response.publisher() == null) {
+            return false;
+        }
+        if (body != null && body.remaining() < minLength) {
+            return false;
+        }
+        return isCompressible(response.header("content-type"));
+    }
+
+    /**
+     * @param contentType the content-type of a response, or null.
+     * @return true for text and structured formats such as JSON, XML and JavaScript.
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int params = contentType.indexOf(';');
+        String type = (params < 0 ? contentType : contentType.substring(0, params)).trim().toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml")
+                || COMPRESSIBLE_TYPES.contains(type);
+    }
+
+    /**
+     * Chooses the content coding of a response by the accept-encoding header of its request (RFC 7231 5.3.4).
+     *
+     * @param acceptEncoding the accept-encoding header, or null.
+     * @return "gzip" or "deflate", whichever has the highest qvalue, or null if neither is acceptable.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            float q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (coding.equals("deflate")) {
+                deflate = Math.max(deflate, q);
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? "gzip" : "deflate";
+    }
+
+    private static String vary(String vary) {
+        if (vary == null || vary.isEmpty()) {
+            return "accept-encoding";
+        }
+        for (String name : vary.split(",")) {
+            String n = name.trim();
+            if (n.equals("*") || n.equalsIgnoreCase("accept-encoding")) {
+                return vary;
+            }
+        }
+        return vary + ", accept-encoding";
+    }
+
+    private static ByteBuffer concat(ByteBuffer a, ByteBuffer b) {
+        ByteBuffer buffer = ByteBuffer.allocate(a.remaining() + b.remaining());
+        return buffer.put(a).put(b).flip();
+    }
+}
@@ -0,0 +1,133 @@
+package handlers;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses one body with a deflater from a pool, as gzip or deflate content coding (RFC 7230 4.2).
+ * <p>
+ * Input is compressed as it is given, without flushing, so each call only returns what the deflater
+ * has produced so far, which may be nothing. The deflater goes back to the pool once the body is finished
+ * or released, after which the compressor must not be used.
+ */
+class Compressor {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private final DeflaterPool pool;
+    private final CRC32 crc;
+    private Deflater deflater;
+    private byte[] out = new byte[512];
+    private int length;
+    private boolean headerWritten;
+
+    /**
+     * @param pool the pool to take the deflater from, which must make raw deflaters for gzip.
+     * @param gzip true for gzip, with its header and trailer around the raw deflate data.
+     */
+    Compressor(DeflaterPool pool, boolean gzip) {
+        this.pool = pool;
+        this.crc = gzip ? new CRC32() : null;
+        this.deflater = pool.acquire();
+    }
+
+    /**
+     * Compresses the remaining bytes of a buffer, without changing its position.
+     *
+     * @param data the data to compress.
+     * @return the compressed data produced so far, which may be empty.
+     */
+    ByteBuffer compress(ByteBuffer data) {
+        length = 0;
+        writeHeader();
+        byte[] in;
+        int offset;
+        int n = data.remaining();
+        if (data.hasArray()) {
+            in = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            in = new byte[n];
+            offset = 0;
+            data.duplicate().get(in);
+        }
+        if (crc != null) {
+            crc.update(in, offset, n);
+        }
+        deflater.setInput(in, offset, n);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+        return result();
+    }
+
+    /**
+     * Finishes the body and returns the deflater to the pool.
+     *
+     * @return the rest of the compressed data, including the gzip trailer.
+     */
+    ByteBuffer finish() {
+        length = 0;
+        writeHeader();
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        if (crc != null) {
+            ensureCapacity(GZIP_TRAILER_LENGTH);
+            writeIntLE((int) crc.getValue());
+            writeIntLE((int) deflater.getBytesRead());
+        }
+        release();
+        return result();
+    }
+
+    /**
+     * Returns the deflater to the pool, if the body was not finished.
+     */
+    void release() {
+        if (deflater != null) {
+            pool.release(deflater);
+            deflater = null;
+        }
+    }
+
+    private void writeHeader() {
+        if (crc != null && !headerWritten) {
+            headerWritten = true;
+            ensureCapacity(GZIP_HEADER.length);
+            System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+            length = GZIP_HEADER.length;
+        }
+    }
+
+    private void deflate() {
+        if (length == out.length) {
+            ensureCapacity(out.length);
+        }
+        length += deflater.deflate(out, length, out.length - length);
+    }
+
+    private void ensureCapacity(int n) {
+        if (length + n > out.length) {
+            out = Arrays.copyOf(out, Math.max(out.length * 2, length + n));
+        }
+    }
+
+    private void writeIntLE(int v) {
+        out[length++] = (byte) v;
+        out[length++] = (byte) (v >>> 8);
+        out[length++] = (byte) (v >>> 16);
+        out[length++] = (byte) (v >>> 24);
+    }
+
+    /**
+     * @return a copy of the output, since the output array is reused for the next call.
+     */
+    private ByteBuffer result() {
+        return ByteBuffer.wrap(Arrays.copyOf(out, length));
+    }
+}
@@ -0,0 +1,59 @@
+package handlers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A bounded pool of deflaters with the same compression level and format.
+ * <p>
+ * A deflater holds native zlib state of a few hundred kilobytes, which is only freed by {@link Deflater#end()}
+ * or the garbage collector, so deflaters are reset and reused instead of being created for every response.
+ * Deflaters released to a full pool are ended at once.
+ */
+public class DeflaterPool {
+
+    private final int level;
+    private final boolean nowrap;
+    private final BlockingQueue<Deflater> idle;
+
+    /**
+     * Creates a pool of deflaters.
+     *
+     * @param level    the compression level, from 1 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param nowrap   true for raw deflate data, as in gzip, or false for the zlib format.
+     * @param capacity the largest number of idle deflaters kept in the pool.
+     */
+    public DeflaterPool(int level, boolean nowrap, int capacity) {
+        this.level = level;
+        this.nowrap = nowrap;
+        this.idle = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return an idle deflater from the pool, or a new one if the pool is empty.
+     */
+    public Deflater acquire() {
+        Deflater deflater = idle.poll();
+        return deflater != null ? deflater : new Deflater(level, nowrap);
+    }
+
+    /**
+     * Resets a deflater and returns it to the pool.
+     *
+     * @param deflater a deflater acquired from this pool, which must not be used by the caller again.
+     */
+    public void release(Deflater deflater) {
+        deflater.reset();
+        if (!idle.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the number of idle deflaters in the pool.
+     */
+    public int idle() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,218 @@
+package handlers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Answers GET and HEAD requests with the files under a directory, with support for byte ranges (RFC 7233).
+ * <p>
+ * Files are never read into memory as a whole, but published from a {@link FileChannel}
+ * one chunk at a time as the flow-control window of the stream allows, while a region that fits in one chunk
+ * is read at once and sent with the headers. A request with a single satisfiable range, such as
+ * {@code bytes=500-999}, {@code bytes=500-} or {@code bytes=-500}, is answered with 206 and a content-range
+ * header, and only the bytes of the range are read. A range that starts beyond the end of the file is answered
+ * with 416. Requests for several ranges, and requests whose if-range does not match the file, get the whole file.
+ * <p>
+ * Responses carry a strong etag made from the size and modification time of the file, so a client can resume
+ * a download with if-range, and requests with a matching if-none-match are answered with 304.
+ *
+ * @see FilePublisher
+ */
+public class FileHandler implements RequestHandler {
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    private final Path root;
+    private final String index;
+
+    /**
+     * Creates a handler serving the files under a directory.
+     *
+     * @param root  the directory to serve.
+     * @param index the name of the file to serve for a path ending with a slash, such as index.html.
+     */
+    public FileHandler(Path root, String index) {
+        this.root = root.toAbsolutePath().normalize();
+        this.index = index;
+    }
+
+    @Override
+    public Response handle(Request request) throws IOException {
+        String path;
+        try {
+            path = new URI(request.path()).getPath();
+        } catch (URISyntaxException | NullPointerException e) {
+            return new Response(400);
+        }
+        if (path == null || !path.startsWith("/")) {
+            return new Response(400);
+        }
+        if (path.endsWith("/")) {
+            path += index;
+        }
+        Path file = root.resolve(path.substring(1)).normalize();
+        if (!file.startsWith(root)) {
+            return new Response(404);
+        }
+        return respond(request, file);
+    }
+
+    /**
+     * Answers a request with a file, or the range of it the request asks for.
+     *
+     * @param request the request, with an optional range header.
+     * @param file    the file to answer with.
+     * @return a 200 or 206 response with the file or its range as the body, or a 304, 404, 405 or 416 response.
+     * @throws IOException if the attributes of the file could not be read.
+     */
+    public Response respond(Request request, Path file) throws IOException {
+        String method = request.method();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            return new Response(405).header("allow", "GET, HEAD");
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return new Response(404);
+        }
+        if (!attributes.isRegularFile()) {
+            return new Response(404);
+        }
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"";
+        String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(ZonedDateTime.ofInstant(attributes.lastModifiedTime().toInstant(), ZoneOffset.UTC));
+        if (matches(request.header("if-none-match"), etag)) {
+            return new Response(304).header("etag", etag).header("last-modified", lastModified);
+        }
+        long start = 0;
+        long length = size;
+        int status = 200;
+        String range = request.header("range");
+        String ifRange = request.header("if-range");
+        if (range != null && (ifRange == null || ifRange.trim().equals(etag) || ifRange.trim().equals(lastModified))) {
+            long[] r = parseRange(range, size);
+            if (r == UNSATISFIABLE) {
+                return new Response(416).header("content-range", "bytes */" + size);
+            }
+            if (r != null) {
+                start = r[0];
+                length = r[1] - r[0] + 1;
+                status = 206;
+            }
+        }
+        Response response = new Response(status)
+                .header("content-type", contentType(file))
+                .header("accept-ranges", "bytes")
+                .header("etag", etag)
+                .header("last-modified", lastModified);
+        if (status == 206) {
+            response.header("content-range", "bytes " + start + "-" + (start + length - 1) + "/" + size);
+        }
+        if (!head && length > FilePublisher.DEFAULT_CHUNK_SIZE) {
+            response.body(new FilePublisher(file, start, length));
+        } else if (!head && length > 0) {
+            response.body(read(file, start, (int) length)); // sent with the end of the stream in one DATA frame
+        }
+        return response.header("content-length", Long.toString(length));
+    }
+
+    /**
+     * Parses a range header with a single byte range.
+     *
+     * @param range the range header.
+     * @param size  the size of the file.
+     * @return the first and last byte of the range, {@link #UNSATISFIABLE} if no byte of the range is in the file,
+     * or null if the header is malformed or asks for several ranges, so it is ignored.
+     */
+    static long[] parseRange(String range, long size) {
+        String r = range.trim();
+        if (!r.regionMatches(true, 0, "bytes=", 0, 6) || r.indexOf(',') >= 0) {
+            return null;
+        }
+        r = r.substring(6).trim();
+        int dash = r.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = r.substring(0, dash).trim();
+            String last = r.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0 || size == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[]{Math.max(0, size - suffix), size - 1};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= size) {
+                return UNSATISFIABLE;
+            }
+            return new long[]{start, Math.min(end, size - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer read(Path file, long position, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("File ended at " + (position + buffer.position()) + ": " + file);
+                }
+            }
+            return buffer.flip();
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String c = candidate.trim();
+            if (c.equals("*") || c.equals(etag) || c.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        String type = URLConnection.guessContentTypeFromName(name);
+        if (type == null) {
+            return "application/octet-stream";
+        }
+        return type.startsWith("text/") ? type + ";charset=utf-8" : type;
+    }
+}
@@ -0,0 +1,143 @@
+package handlers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A publisher of a region of a file, read from a {@link FileChannel} one chunk at a time.
+ * <p>
+ * A chunk is only read when the subscriber requests it, from the position the previous chunk ended at,
+ * so only the bytes of the region are ever read and at most one chunk per request is held in memory.
+ * Each subscriber reads through its own channel, which is opened by the first request and closed
+ * once the region has been published, the subscription is cancelled or a read fails.
+ */
+public class FilePublisher implements Flow.Publisher<ByteBuffer> {
+
+    /**
+     * The size of the chunks read from the file, which is the default SETTINGS_MAX_FRAME_SIZE.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 16384;
+
+    private final Path file;
+    private final long position;
+    private final long length;
+    private final int chunkSize;
+
+    /**
+     * Creates a publisher of a region of a file.
+     *
+     * @param file      the file to read.
+     * @param position  the offset of the first byte to publish.
+     * @param length    the number of bytes to publish.
+     * @param chunkSize the largest number of bytes read and published at a time.
+     */
+    public FilePublisher(Path file, long position, long length, int chunkSize) {
+        this.file = file;
+        this.position = position;
+        this.length = length;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Creates a publisher of a region of a file, read in chunks of the default size.
+     *
+     * @param file     the file to read.
+     * @param position the offset of the first byte to publish.
+     * @param length   the number of bytes to publish.
+     */
+    public FilePublisher(Path file, long position, long length) {
+        this(file, position, length, DEFAULT_CHUNK_SIZE);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger wip = new AtomicInteger();
+            private FileChannel channel;
+            private long offset = position;
+            private volatile boolean cancelled = false;
+
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancel();
+                    subscriber.onError(new IllegalArgumentException("Non-positive request"));
+                    return;
+                }
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                drain();
+            }
+
+            /**
+             * Publishes chunks while there is demand, and closes the channel once done.
+             * Only runs on one thread at a time.
+             */
+            private void drain() {
+                if (wip.getAndIncrement() != 0) {
+                    return;
+                }
+                do {
+                    try {
+                        while (!cancelled && demand.get() > 0 && offset < position + length) {
+                            demand.decrementAndGet();
+                            subscriber.onNext(read());
+                        }
+                    } catch (IOException e) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                    }
+                    if (!cancelled && offset == position + length) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                    if (cancelled) {
+                        close();
+                    }
+                } while (wip.decrementAndGet() != 0);
+            }
+
+            /**
+             * @return the next chunk of the region.
+             * @throws EOFException if the file has become shorter than the region.
+             */
+            private ByteBuffer read() throws IOException {
+                if (channel == null) {
+                    channel = FileChannel.open(file, StandardOpenOption.READ);
+                }
+                ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, position + length - offset));
+                while (chunk.hasRemaining()) {
+                    int n = channel.read(chunk, offset);
+                    if (n < 0) {
+                        throw new EOFException("File ended at " + offset + ": " + file);
+                    }
+                    offset += n;
+                }
+                return chunk.flip();
+            }
+
+            private void close() {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                    channel = null;
+                }
+            }
+        });
+    }
+}
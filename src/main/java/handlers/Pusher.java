@@ -0,0 +1,28 @@
+package handlers;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Promises a pushed response on the stream of a request, using a PUSH_PROMISE frame.
+ *
+ * @see Request#push(Map)
+ */
+@FunctionalInterface
+public interface Pusher {
+
+    /**
+     * A pusher for requests that cannot push, such as pushed requests themselves.
+     */
+    Pusher NONE = headers -> false;
+
+    /**
+     * Promises a response to a request the peer has not made yet.
+     * The promised request is answered by the same handler, as if the peer had sent it.
+     *
+     * @param headers the headers of the promised request, including :method, :scheme, :authority and :path.
+     * @return false if the push was dropped, for instance because the peer has disabled push.
+     * @throws IOException if the connection is closed.
+     */
+    boolean push(Map<String, String> headers) throws IOException;
+}
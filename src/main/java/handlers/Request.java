@@ -0,0 +1,172 @@
+package handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Flow;
+
+/**
+ * A request received on a stream, made up of the decoded header block of its HEADERS frame
+ * and a body published as its DATA frames arrive.
+ */
+public class Request {
+
+    public final int streamId;
+    private final Map<String, String> headers;
+    private final Flow.Publisher<ByteBuffer> body;
+    private final Pusher pusher;
+
+    /**
+     * Creates a request with the specified headers and body.
+     *
+     * @param streamId the id of the stream the request was received on.
+     * @param headers  the headers of the request, including pseudo-headers such as :method and :path.
+     * @param body     the body of the request.
+     * @param pusher   the pusher promising responses on the stream of the request.
+     */
+    public Request(int streamId, Map<String, String> headers, Flow.Publisher<ByteBuffer> body, Pusher pusher) {
+        this.streamId = streamId;
+        this.headers = headers;
+        this.body = body;
+        this.pusher = pusher;
+    }
+
+    /**
+     * Creates a request with the specified headers and body, which cannot push.
+     *
+     * @param streamId the id of the stream the request was received on.
+     * @param headers  the headers of the request, including pseudo-headers such as :method and :path.
+     * @param body     the body of the request.
+     */
+    public Request(int streamId, Map<String, String> headers, Flow.Publisher<ByteBuffer> body) {
+        this(streamId, headers, body, Pusher.NONE);
+    }
+
+    /**
+     * Creates a request with the specified headers and no body.
+     *
+     * @param streamId the id of the stream the request was received on.
+     * @param headers  the headers of the request, including pseudo-headers such as :method and :path.
+     */
+    public Request(int streamId, Map<String, String> headers) {
+        this(streamId, headers, RequestBody.empty());
+    }
+
+    /**
+     * Creates a request from a decoded header block, with one "name: value" header per line.
+     * Repeated headers are joined with a comma, except cookies which are joined with a semicolon.
+     *
+     * @param streamId the id of the stream the request was received on.
+     * @param block    the decoded header block.
+     * @param body     the body of the request.
+     * @param pusher   the pusher promising responses on the stream of the request.
+     * @return the request.
+     */
+    public static Request parse(int streamId, ByteBuffer block, Flow.Publisher<ByteBuffer> body, Pusher pusher) {
+        ByteBuffer b = block.duplicate().rewind();
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("[\\n\\r]+")) {
+            int sep = line.indexOf(':', line.startsWith(":") ? 1 : 0);
+            if (sep > 0) {
+                String name = line.substring(0, sep).trim().toLowerCase();
+                String value = line.substring(sep + 1).trim();
+                headers.merge(name, value, (a, v) -> a + (name.equals("cookie") ? "; " : ", ") + v);
+            }
+        }
+        return new Request(streamId, headers, body, pusher);
+    }
+
+    /**
+     * @param name the name of the header, in lower case.
+     * @return the value of the header, or null if the request does not have it.
+     */
+    public String header(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * @return all headers of this request.
+     */
+    public Map<String, String> headers() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return the :method pseudo-header.
+     */
+    public String method() {
+        return headers.get(":method");
+    }
+
+    /**
+     * @return the :path pseudo-header.
+     */
+    public String path() {
+        return headers.get(":path");
+    }
+
+    /**
+     * @return the :authority pseudo-header.
+     */
+    public String authority() {
+        return headers.get(":authority");
+    }
+
+    /**
+     * @return the header block of this request, with one "name:value" header per line.
+     */
+    public ByteBuffer headerBlock() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            sb.append(e.getKey()).append(':').append(e.getValue()).append("\r\n");
+        }
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Promises a pushed response to a request the peer has not made yet.
+     *
+     * @param headers the headers of the promised request, including :method, :scheme, :authority and :path.
+     * @return false if the push was dropped, because the peer has disabled push,
+     * too many pushed streams are open, or this request cannot push.
+     * @throws IOException if the connection is closed.
+     */
+    public boolean push(Map<String, String> headers) throws IOException {
+        return pusher.push(headers);
+    }
+
+    /**
+     * Promises a pushed response to a GET request for a path with the same scheme and authority as this request.
+     *
+     * @param path the path of the promised request.
+     * @return false if the push was dropped.
+     * @throws IOException if the connection is closed.
+     */
+    public boolean push(String path) throws IOException {
+        Map<String, String> promised = new LinkedHashMap<>();
+        promised.put(":method", "GET");
+        promised.put(":scheme", headers.getOrDefault(":scheme", "https"));
+        if (authority() != null) {
+            promised.put(":authority", authority());
+        }
+        promised.put(":path", path);
+        return push(promised);
+    }
+
+    /**
+     * @return the body of this request. Data is only read from the peer as the subscriber requests it.
+     */
+    public Flow.Publisher<ByteBuffer> body() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return "Request: streamId=" + streamId + ", headers=" + headers;
+    }
+}
@@ -0,0 +1,169 @@
+package handlers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * The body of a request, published as the DATA frames of its stream arrive.
+ * <p>
+ * Received data is only buffered until the subscriber requests it. The number of bytes delivered
+ * to the subscriber is reported to the connection, which gives the peer the same amount of
+ * flow-control window back, so a slow subscriber throttles the peer instead of filling memory.
+ * Only one subscriber is allowed.
+ */
+public class RequestBody implements Flow.Publisher<ByteBuffer> {
+
+    private final IntConsumer onConsumed;
+    private final ConcurrentLinkedQueue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile Flow.Subscriber<? super ByteBuffer> subscriber;
+    private volatile boolean done = false;
+    private volatile boolean cancelled = false;
+    private volatile Throwable error;
+    private boolean terminated = false;
+
+    /**
+     * Creates a request body.
+     *
+     * @param onConsumed called with the number of bytes taken by the subscriber or discarded.
+     */
+    public RequestBody(IntConsumer onConsumed) {
+        this.onConsumed = onConsumed;
+    }
+
+    /**
+     * @return a request body that completes without any data.
+     */
+    public static RequestBody empty() {
+        RequestBody body = new RequestBody(n -> {
+        });
+        body.complete();
+        return body;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> s) {
+        if (!subscribed.compareAndSet(false, true)) {
+            s.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("Request body already subscribed"));
+            return;
+        }
+        s.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("Non-positive request"));
+                    return;
+                }
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                drain();
+            }
+        });
+        subscriber = s;
+        drain();
+    }
+
+    /**
+     * Adds received data to the body. Called by the connection thread.
+     *
+     * @param data the received data.
+     */
+    public void offer(ByteBuffer data) {
+        chunks.add(data);
+        drain();
+    }
+
+    /**
+     * Ends the body after the last received data.
+     */
+    public void complete() {
+        done = true;
+        drain();
+    }
+
+    /**
+     * Ends the body with an error, for instance when the stream is reset.
+     *
+     * @param t the cause.
+     */
+    public void fail(Throwable t) {
+        error = t;
+        done = true;
+        drain();
+    }
+
+    /**
+     * @return true if the body has ended without an error and has no data left to publish.
+     */
+    public boolean isEmpty() {
+        return done && error == null && chunks.isEmpty();
+    }
+
+    /**
+     * Discards all data of this body if it has not been subscribed to.
+     *
+     * @return true if the body was not subscribed to and will now be discarded.
+     */
+    public boolean discard() {
+        if (subscribed.compareAndSet(false, true)) {
+            cancelled = true;
+            drain();
+            return true;
+        }
+        return false;
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            ByteBuffer b;
+            if (cancelled) {
+                while ((b = chunks.poll()) != null) {
+                    onConsumed.accept(b.remaining());
+                }
+                continue;
+            }
+            Flow.Subscriber<? super ByteBuffer> s = subscriber;
+            if (s == null) {
+                continue;
+            }
+            while (demand.get() > 0 && !cancelled && (b = chunks.poll()) != null) {
+                demand.decrementAndGet();
+                int n = b.remaining();
+                s.onNext(b);
+                onConsumed.accept(n);
+            }
+            if (done && chunks.isEmpty() && !terminated && !cancelled) {
+                terminated = true;
+                if (error != null) {
+                    s.onError(error);
+                } else {
+                    s.onComplete();
+                }
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+}
@@ -0,0 +1,25 @@
+package handlers;
+
+import java.io.IOException;
+
+/**
+ * Handles a request received on a stream and produces the response to send on it.
+ * <p>
+ * Handlers are run on the executor of the connection, so they may block and several
+ * may run at the same time, also for streams on the same connection.
+ *
+ * @see Request
+ * @see Response
+ */
+@FunctionalInterface
+public interface RequestHandler {
+
+    /**
+     * Handles a request.
+     *
+     * @param request the received request.
+     * @return the response to send on the stream of the request.
+     * @throws IOException if the response could not be created.
+     */
+    Response handle(Request request) throws IOException;
+}
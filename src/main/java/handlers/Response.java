@@ -0,0 +1,157 @@
+package handlers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Flow;
+
+/**
+ * A response to send on a stream. The body is either a buffer in memory,
+ * or a publisher which is only asked for more data as the flow-control window allows it to be sent.
+ */
+public class Response {
+
+    public final int status;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private ByteBuffer body;
+    private Flow.Publisher<ByteBuffer> publisher;
+
+    /**
+     * Creates a response without headers or body.
+     *
+     * @param status the status code of the response.
+     */
+    public Response(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Creates a response with a body.
+     *
+     * @param status the status code of the response.
+     * @param body   the body of the response.
+     */
+    public Response(int status, ByteBuffer body) {
+        this(status);
+        body(body);
+    }
+
+    /**
+     * Creates a response from a decoded header block, with one "name: value" header per line.
+     * Repeated headers are joined with a comma.
+     *
+     * @param block the decoded header block.
+     * @return the response, with a status of 0 if the block has no valid :status pseudo-header.
+     */
+    public static Response parse(ByteBuffer block) {
+        ByteBuffer b = block.duplicate().rewind();
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("[\\n\\r]+")) {
+            int sep = line.indexOf(':', line.startsWith(":") ? 1 : 0);
+            if (sep > 0) {
+                String name = line.substring(0, sep).trim().toLowerCase();
+                String value = line.substring(sep + 1).trim();
+                headers.merge(name, value, (a, v) -> a + ", " + v);
+            }
+        }
+        int status;
+        try {
+            status = Integer.parseInt(headers.remove(":status"));
+        } catch (NumberFormatException e) {
+            status = 0;
+        }
+        Response response = new Response(status);
+        response.headers.putAll(headers);
+        return response;
+    }
+
+    /**
+     * Sets a header of this response.
+     *
+     * @param name  the name of the header, in lower case.
+     * @param value the value of the header.
+     * @return this response.
+     */
+    public Response header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Sets the body of this response, and its content-length header.
+     *
+     * @param body the body of the response.
+     * @return this response.
+     */
+    public Response body(ByteBuffer body) {
+        this.body = body;
+        this.publisher = null;
+        headers.put("content-length", Integer.toString(body.remaining()));
+        return this;
+    }
+
+    /**
+     * Sets the body of this response to a publisher of buffers of unknown total length.
+     *
+     * @param publisher the publisher of the body.
+     * @return this response.
+     */
+    public Response body(Flow.Publisher<ByteBuffer> publisher) {
+        this.body = null;
+        this.publisher = publisher;
+        headers.remove("content-length");
+        return this;
+    }
+
+    /**
+     * @param name the name of the header, in lower case.
+     * @return the value of the header, or null if this response does not have it.
+     */
+    public String header(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * @return all headers of this response, excluding :status.
+     */
+    public Map<String, String> headers() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return the body of this response if it is a buffer in memory, otherwise null.
+     */
+    public ByteBuffer body() {
+        return body;
+    }
+
+    /**
+     * @return the body of this response as a publisher, or null if it has no body.
+     */
+    public Flow.Publisher<ByteBuffer> publisher() {
+        if (publisher == null && body != null) {
+            return new BufferPublisher(body);
+        }
+        return publisher;
+    }
+
+    /**
+     * @return the header block of this response, with one "name:value" header per line.
+     */
+    public ByteBuffer headerBlock() {
+        StringBuilder sb = new StringBuilder(":status:").append(status).append("\r\n");
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            sb.append(e.getKey()).append(':').append(e.getValue()).append("\r\n");
+        }
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString() {
+        return "Response: status=" + status + ", headers=" + headers;
+    }
+}
@@ -0,0 +1,17 @@
+package logging;
+
+/**
+ * The levels of log events, from the most to the least detailed.
+ * Events are only logged at or above the level set with {@link Log#setLevel(Level)}.
+ */
+public enum Level {
+    TRACE,
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    /**
+     * Logs nothing.
+     */
+    OFF
+}
@@ -0,0 +1,211 @@
+package logging;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A small logging facade that never blocks the threads doing the work.
+ * <p>
+ * An event below the current level costs one volatile read and is otherwise ignored,
+ * so calls should pass their arguments to a {@code {}} template instead of concatenating them.
+ * Enabled events are formatted on the calling thread, since the frames and buffers they describe
+ * may be reused afterwards, and are handed to a background writer through a bounded ring buffer.
+ * When the buffer is full, events are dropped and counted rather than waiting.
+ * The writer parks without a timeout when the buffer is empty, and the first event offered after it does unparks it.
+ * Events below WARN are written to {@link System#out}, the rest to {@link System#err}.
+ * <p>
+ * The level is INFO unless set with the system property {@code http2.log.level}.
+ */
+public final class Log {
+
+    private static final int CAPACITY = 8192;
+
+    private static volatile int threshold = initialLevel().ordinal();
+    private static final RingBuffer<Event> events = new RingBuffer<>(CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long reportedDrops = 0;
+    private static volatile boolean parked = false;
+    private static final Thread writer = new Thread(Log::run, "log-writer");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+    }
+
+    private Log() {
+    }
+
+    private static Level initialLevel() {
+        try {
+            return Level.valueOf(System.getProperty("http2.log.level", "INFO").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * @param level the lowest level of the events to log.
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * @param level a level.
+     * @return true if events of the level are logged.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold && level != Level.OFF;
+    }
+
+    public static void trace(String template, Object arg) {
+        if (isEnabled(Level.TRACE)) {
+            log(Level.TRACE, format(template, arg), null);
+        }
+    }
+
+    public static void debug(String template, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, format(template, arg), null);
+        }
+    }
+
+    public static void debug(String template, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, format(template, arg1, arg2), null);
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, message, null);
+        }
+    }
+
+    public static void info(String template, Object arg) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, format(template, arg), null);
+        }
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, message, null);
+        }
+    }
+
+    public static void warn(String message, Throwable t) {
+        if (isEnabled(Level.WARN)) {
+            log(Level.WARN, message, t);
+        }
+    }
+
+    public static void error(String message, Throwable t) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, message, t);
+        }
+    }
+
+    /**
+     * Replaces each {@code {}} in a template with the next argument.
+     */
+    private static String format(String template, Object... args) {
+        StringBuilder sb = new StringBuilder(template.length() + 64);
+        int from = 0;
+        for (Object arg : args) {
+            int i = template.indexOf("{}", from);
+            if (i < 0) {
+                break;
+            }
+            sb.append(template, from, i).append(arg);
+            from = i + 2;
+        }
+        return sb.append(template, from, template.length()).toString();
+    }
+
+    private static void log(Level level, String message, Throwable t) {
+        if (t != null) {
+            StringWriter sw = new StringWriter();
+            t.printStackTrace(new PrintWriter(sw));
+            message = message + System.lineSeparator() + sw;
+        }
+        if (!events.offer(new Event(level, Thread.currentThread().getName(), message))) {
+            dropped.incrementAndGet();
+        } else if (parked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * @return the number of events dropped because the buffer was full.
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    private static void run() {
+        while (true) {
+            if (!drain()) {
+                parked = true;
+                // checked after announcing the park, so an event offered meanwhile either is seen here or unparks
+                if (events.isEmpty()) {
+                    LockSupport.park();
+                }
+                parked = false;
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered events. Only the writer, and the shutdown hook once the writer is no longer needed, call this.
+     *
+     * @return true if any events were written.
+     */
+    private static synchronized boolean drain() {
+        boolean out = false;
+        boolean err = false;
+        Event e;
+        while ((e = events.poll()) != null) {
+            PrintStream ps = e.level.compareTo(Level.WARN) < 0 ? System.out : System.err;
+            ps.println(e);
+            out |= ps == System.out;
+            err |= ps == System.err;
+        }
+        long drops = dropped.get();
+        if (drops > reportedDrops) {
+            System.err.println((drops - reportedDrops) + " log events dropped");
+            reportedDrops = drops;
+            err = true;
+        }
+        if (out) {
+            System.out.flush();
+        }
+        if (err) {
+            System.err.flush();
+        }
+        return out || err;
+    }
+
+    private static class Event {
+        final long time = System.currentTimeMillis();
+        final Level level;
+        final String thread;
+        final String message;
+
+        Event(Level level, String thread, String message) {
+            this.level = level;
+            this.thread = thread;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(time) + " " + level + " [" + thread + "] " + message;
+        }
+    }
+}
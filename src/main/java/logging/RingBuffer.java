@@ -0,0 +1,91 @@
+package logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free queue with many producers and a single consumer.
+ * <p>
+ * Each slot has a sequence number telling whether it is free for the producer of a position,
+ * or holds an element for the consumer. Producers claim positions with a CAS, and never wait:
+ * when the buffer is full, {@link #offer(Object)} fails.
+ *
+ * @param <E> the type of the elements.
+ */
+class RingBuffer<E> {
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+
+    /**
+     * @param capacity the capacity of the buffer, rounded up to a power of two.
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element. Safe to call from any thread.
+     *
+     * @param e the element to add.
+     * @return false if the buffer is full.
+     */
+    boolean offer(E e) {
+        long pos = tail.get();
+        while (true) {
+            long diff = sequences.get((int) (pos & mask)) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        int i = (int) (pos & mask);
+        elements[i] = e;
+        sequences.lazySet(i, pos + 1);
+        return true;
+    }
+
+    /**
+     * Tells whether no position has been claimed beyond those consumed. An element whose position is claimed
+     * may still be on its way, in which case {@link #poll()} returns null for a little while.
+     * Must only be called by the consumer thread.
+     *
+     * @return true if the buffer is empty.
+     */
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     * Removes the oldest element. Must only be called by the consumer thread.
+     *
+     * @return the oldest element, or null if the buffer is empty.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        int i = (int) (head & mask);
+        if (sequences.get(i) != head + 1) {
+            return null;
+        }
+        E e = (E) elements[i];
+        elements[i] = null;
+        sequences.lazySet(i, head + elements.length);
+        head++;
+        return e;
+    }
+}
@@ -0,0 +1,57 @@
+package metrics;
+
+/**
+ * The counts of a {@link Histogram} at one point in time.
+ */
+public class HistogramSnapshot {
+
+    private final long[] counts;
+    public final long count;
+    public final long sum;
+    public final long max;
+
+    HistogramSnapshot(long[] counts, long sum, long max) {
+        this.counts = counts;
+        long n = 0;
+        for (long c : counts) {
+            n += c;
+        }
+        this.count = n;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if there are none.
+     */
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Finds the value below which a percentage of the recorded values lie.
+     *
+     * @param percentile the percentage, from 0 to 100.
+     * @return the highest value in the bucket reaching the percentile, or 0 if no values are recorded.
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(Histogram.highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", mean=" + Math.round(mean()) + ", p50=" + percentile(50) + ", p90=" + percentile(90)
+                + ", p99=" + percentile(99) + ", p99.9=" + percentile(99.9) + ", max=" + max;
+    }
+}
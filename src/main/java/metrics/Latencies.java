@@ -0,0 +1,103 @@
+package metrics;
+
+import streams.Stream;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms of answered requests, per route and for all routes together.
+ * <p>
+ * For each request, the time from receiving its HEADERS until the handler started, until the response
+ * HEADERS were written (time to first byte), until the first DATA frame was written and until END_STREAM
+ * was written are recorded in microseconds. Only the first {@code maxRoutes} routes get histograms
+ * of their own, so that clients can not use up memory with made up paths; later routes are counted as {@link #OTHER}.
+ * The latencies of all routes together are read with {@link #aggregate()}, apart from the routes, since any
+ * string, such as the {@code *} of {@code OPTIONS *}, can be a route.
+ */
+public class Latencies {
+
+    public static final String OTHER = "other";
+    private static final Latencies GLOBAL = new Latencies(100);
+
+    private final int maxRoutes;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final Route all = new Route();
+
+    /**
+     * @param maxRoutes the largest number of routes with histograms of their own.
+     */
+    public Latencies(int maxRoutes) {
+        this.maxRoutes = maxRoutes;
+    }
+
+    /**
+     * @return the server-wide latencies.
+     */
+    public static Latencies global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Records the latencies of a stream on which the whole response has been written.
+     *
+     * @param route  the route of the request, such as its path.
+     * @param stream the stream of the request.
+     */
+    public void record(String route, Stream stream) {
+        Route r = routes.get(route);
+        if (r == null) {
+            r = routes.size() < maxRoutes ? routes.computeIfAbsent(route, k -> new Route())
+                    : routes.computeIfAbsent(OTHER, k -> new Route());
+        }
+        r.record(stream);
+        all.record(stream);
+    }
+
+    /**
+     * @return the latencies of each route.
+     */
+    public Map<String, LatencySnapshot> snapshot() {
+        Map<String, LatencySnapshot> snapshot = new TreeMap<>();
+        for (Map.Entry<String, Route> e : routes.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().snapshot());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the latencies of all routes together.
+     */
+    public LatencySnapshot aggregate() {
+        return all.snapshot();
+    }
+
+    private static class Route {
+
+        final Histogram handlerDelay = new Histogram();
+        final Histogram timeToFirstByte = new Histogram();
+        final Histogram timeToFirstData = new Histogram();
+        final Histogram total = new Histogram();
+
+        void record(Stream s) {
+            long start = s.getCreatedAt();
+            record(handlerDelay, start, s.getHandlerStartedAt());
+            record(timeToFirstByte, start, s.getHeadersWrittenAt());
+            record(timeToFirstData, start, s.getDataWrittenAt());
+            record(total, start, s.getEndWrittenAt());
+        }
+
+        private static void record(Histogram h, long start, long end) {
+            if (end != 0) {
+                h.record(TimeUnit.NANOSECONDS.toMicros(end - start));
+            }
+        }
+
+        LatencySnapshot snapshot() {
+            return new LatencySnapshot(handlerDelay.snapshot(), timeToFirstByte.snapshot(),
+                    timeToFirstData.snapshot(), total.snapshot());
+        }
+    }
+}
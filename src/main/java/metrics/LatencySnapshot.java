@@ -0,0 +1,30 @@
+package metrics;
+
+/**
+ * The latency histograms of a route at one point in time, in microseconds.
+ *
+ * @see Latencies
+ */
+public class LatencySnapshot {
+
+    public final HistogramSnapshot handlerDelay;
+    public final HistogramSnapshot timeToFirstByte;
+    public final HistogramSnapshot timeToFirstData;
+    public final HistogramSnapshot total;
+
+    LatencySnapshot(HistogramSnapshot handlerDelay, HistogramSnapshot timeToFirstByte,
+                    HistogramSnapshot timeToFirstData, HistogramSnapshot total) {
+        this.handlerDelay = handlerDelay;
+        this.timeToFirstByte = timeToFirstByte;
+        this.timeToFirstData = timeToFirstData;
+        this.total = total;
+    }
+
+    @Override
+    public String toString() {
+        return "handler_delay{" + handlerDelay + "}\n"
+                + "ttfb{" + timeToFirstByte + "}\n"
+                + "first_data{" + timeToFirstData + "}\n"
+                + "total{" + total + "}\n";
+    }
+}
@@ -0,0 +1,193 @@
+package metrics;
+
+import frames.ErrorCode;
+import frames.FrameType;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for what a connection, or the whole server, is doing.
+ * <p>
+ * Every counter is a {@link LongAdder}, so counting from the connection thread, the writer
+ * and the handlers at the same time never takes a lock. A connection counts into its own metrics,
+ * which also count into their parent, normally the server-wide {@link #global()} metrics.
+ * Read the counters with {@link #snapshot()}.
+ */
+public class Metrics {
+
+    private static final Metrics GLOBAL = new Metrics(null);
+
+    private final Metrics parent;
+    final LongAdder[] framesIn = adders(FrameType.values().length);
+    final LongAdder[] framesOut = adders(FrameType.values().length);
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder activeConnections = new LongAdder();
+    final LongAdder totalConnections = new LongAdder();
+    final LongAdder activeStreams = new LongAdder();
+    final LongAdder totalStreams = new LongAdder();
+    final LongAdder[] resetsIn = adders(ErrorCode.values().length);
+    final LongAdder[] resetsOut = adders(ErrorCode.values().length);
+    final LongAdder[] goAwaysIn = adders(ErrorCode.values().length);
+    final LongAdder[] goAwaysOut = adders(ErrorCode.values().length);
+    final LongAdder flowControlStalls = new LongAdder();
+    final LongAdder queuedFrames = new LongAdder();
+    final LongAdder tlsHandshakes = new LongAdder();
+    final LongAdder tlsResumptions = new LongAdder();
+
+    /**
+     * Creates metrics that also count into a parent.
+     *
+     * @param parent the metrics to also count into, or null.
+     */
+    public Metrics(Metrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @return the server-wide metrics, which all connections count into.
+     */
+    public static Metrics global() {
+        return GLOBAL;
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Counts a received frame. Frames of unknown or extension types only count towards the bytes received.
+     *
+     * @param type   the type of the frame, or null if it is not a known type.
+     * @param length the length of the frame, including its header.
+     */
+    public void frameIn(FrameType type, int length) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            if (type != null) {
+                m.framesIn[type.ordinal()].increment();
+            }
+            m.bytesIn.add(length);
+        }
+    }
+
+    /**
+     * Counts a written frame.
+     *
+     * @param type   the type of the frame.
+     * @param length the length of the frame, including its header.
+     */
+    public void frameOut(FrameType type, int length) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.framesOut[type.ordinal()].increment();
+            m.bytesOut.add(length);
+        }
+    }
+
+    /**
+     * Counts a RST_STREAM frame.
+     *
+     * @param errorCode the error code of the frame.
+     * @param received  true if the frame was received, false if it was sent.
+     */
+    public void reset(ErrorCode errorCode, boolean received) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            (received ? m.resetsIn : m.resetsOut)[errorCode.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Counts a GOAWAY frame.
+     *
+     * @param errorCode the error code of the frame.
+     * @param received  true if the frame was received, false if it was sent.
+     */
+    public void goAway(ErrorCode errorCode, boolean received) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            (received ? m.goAwaysIn : m.goAwaysOut)[errorCode.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Counts an opened connection.
+     */
+    public void connectionOpened() {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.activeConnections.increment();
+            m.totalConnections.increment();
+        }
+    }
+
+    /**
+     * Counts a closed connection.
+     */
+    public void connectionClosed() {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.activeConnections.decrement();
+        }
+    }
+
+    /**
+     * Counts an opened stream.
+     */
+    public void streamOpened() {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.activeStreams.increment();
+            m.totalStreams.increment();
+        }
+    }
+
+    /**
+     * Counts a closed stream.
+     */
+    public void streamClosed() {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.activeStreams.decrement();
+        }
+    }
+
+    /**
+     * Counts a stream whose DATA frames have become held back because a send window is too small.
+     * A stream is counted again only after it has written more DATA.
+     */
+    public void flowControlStall() {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.flowControlStalls.increment();
+        }
+    }
+
+    /**
+     * Changes the number of frames queued for writing.
+     *
+     * @param delta the number of frames queued, or written if negative.
+     */
+    public void framesQueued(int delta) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.queuedFrames.add(delta);
+        }
+    }
+
+    /**
+     * Counts a completed TLS handshake.
+     *
+     * @param resumed true if the handshake resumed an earlier session instead of creating one.
+     */
+    public void tlsHandshake(boolean resumed) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.tlsHandshakes.increment();
+            if (resumed) {
+                m.tlsResumptions.increment();
+            }
+        }
+    }
+
+    /**
+     * @return the current values of all counters.
+     */
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(this);
+    }
+}
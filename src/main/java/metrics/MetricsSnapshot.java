@@ -0,0 +1,107 @@
+package metrics;
+
+import frames.ErrorCode;
+import frames.FrameType;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The values of {@link Metrics} at one point in time.
+ * <p>
+ * Counters are read one at a time while they may be changing,
+ * so a snapshot is not atomic across counters.
+ * {@link #toString()} prints one counter per line, in a form monitoring agents can scrape.
+ */
+public class MetricsSnapshot {
+
+    public final long timestamp;
+    public final Map<FrameType, Long> framesIn;
+    public final Map<FrameType, Long> framesOut;
+    public final long bytesIn;
+    public final long bytesOut;
+    public final long activeConnections;
+    public final long totalConnections;
+    public final long activeStreams;
+    public final long totalStreams;
+    public final Map<ErrorCode, Long> resetsIn;
+    public final Map<ErrorCode, Long> resetsOut;
+    public final Map<ErrorCode, Long> goAwaysIn;
+    public final Map<ErrorCode, Long> goAwaysOut;
+    public final long flowControlStalls;
+    public final long queuedFrames;
+    public final long tlsHandshakes;
+    public final long tlsResumptions;
+
+    MetricsSnapshot(Metrics m) {
+        this.timestamp = System.currentTimeMillis();
+        this.framesIn = sum(FrameType.class, FrameType.values(), m.framesIn);
+        this.framesOut = sum(FrameType.class, FrameType.values(), m.framesOut);
+        this.bytesIn = m.bytesIn.sum();
+        this.bytesOut = m.bytesOut.sum();
+        this.activeConnections = m.activeConnections.sum();
+        this.totalConnections = m.totalConnections.sum();
+        this.activeStreams = m.activeStreams.sum();
+        this.totalStreams = m.totalStreams.sum();
+        this.resetsIn = sum(ErrorCode.class, ErrorCode.values(), m.resetsIn);
+        this.resetsOut = sum(ErrorCode.class, ErrorCode.values(), m.resetsOut);
+        this.goAwaysIn = sum(ErrorCode.class, ErrorCode.values(), m.goAwaysIn);
+        this.goAwaysOut = sum(ErrorCode.class, ErrorCode.values(), m.goAwaysOut);
+        this.flowControlStalls = m.flowControlStalls.sum();
+        this.queuedFrames = m.queuedFrames.sum();
+        this.tlsHandshakes = m.tlsHandshakes.sum();
+        this.tlsResumptions = m.tlsResumptions.sum();
+    }
+
+    /**
+     * @return the share of TLS handshakes that resumed a session, from 0 to 1, or 0 if there were none.
+     */
+    public double tlsResumptionRate() {
+        return tlsHandshakes == 0 ? 0 : (double) tlsResumptions / tlsHandshakes;
+    }
+
+    private static <E extends Enum<E>> Map<E, Long> sum(Class<E> c, E[] keys, LongAdder[] adders) {
+        EnumMap<E, Long> map = new EnumMap<>(c);
+        for (E key : keys) {
+            map.put(key, adders[key.ordinal()].sum());
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        append(sb, "frames_in", "type", framesIn);
+        append(sb, "frames_out", "type", framesOut);
+        append(sb, "bytes_in", bytesIn);
+        append(sb, "bytes_out", bytesOut);
+        append(sb, "connections_active", activeConnections);
+        append(sb, "connections_total", totalConnections);
+        append(sb, "streams_active", activeStreams);
+        append(sb, "streams_total", totalStreams);
+        append(sb, "resets_in", "error", resetsIn);
+        append(sb, "resets_out", "error", resetsOut);
+        append(sb, "goaways_in", "error", goAwaysIn);
+        append(sb, "goaways_out", "error", goAwaysOut);
+        append(sb, "flow_control_stalls", flowControlStalls);
+        append(sb, "queued_frames", queuedFrames);
+        append(sb, "tls_handshakes", tlsHandshakes);
+        append(sb, "tls_resumptions", tlsResumptions);
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void append(StringBuilder sb, String name, String label, Map<? extends Enum<?>, Long> values) {
+        for (Map.Entry<? extends Enum<?>, Long> e : values.entrySet()) {
+            if (e.getValue() != 0) {
+                sb.append(name).append('{').append(label).append("=\"").append(e.getKey().name()).append("\"} ")
+                        .append(e.getValue()).append('\n');
+            }
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package streams;
 
+import frames.Flags;
 import frames.Frame;
+import frames.FrameType;
+import frames.Setting;
 
-import static streams.StreamState.OPEN;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static streams.StreamState.*;
 
 /**
  * A "stream" is an independent, bidirectional sequence of frames
@@ -28,10 +36,31 @@ import static streams.StreamState.OPEN;
  */
 public class Stream {
 
+    /**
+     * The weight of a stream without priority information, 16 (RFC 7540 5.3.5), stored less one
+     * as it is sent in HEADERS and PRIORITY frames.
+     */
+    public static final byte DEFAULT_WEIGHT = 15;
+
     public int streamId = 0;
-    StreamState state;
+    volatile StreamState state;
     public Stream parent;
-    byte weight;
+    volatile byte weight;
+    private final AtomicInteger sendWindow = new AtomicInteger(Setting.SETTINGS_INITIAL_WINDOW_SIZE.defaultValue);
+    private final AtomicInteger receiveWindow = new AtomicInteger(Setting.SETTINGS_INITIAL_WINDOW_SIZE.defaultValue);
+    private volatile Runnable writeListener;
+    private final AtomicReference<Flow.Subscription> bodySubscription = new AtomicReference<>();
+    private boolean blocked;
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final AtomicBoolean ended = new AtomicBoolean();
+    private final long createdAt = System.nanoTime();
+    private volatile long lastRead = createdAt;
+    private volatile long lastWritten = createdAt;
+    private volatile long handlerStartedAt;
+    private volatile long headersWrittenAt;
+    private volatile long dataWrittenAt;
+    private volatile long endWrittenAt;
 
     /**
      * Creates a stream with the specified stream id and parent.
@@ -40,7 +69,7 @@ public class Stream {
      * @param parent The parent of this stream.
      */
     public Stream(int streamId, Stream parent) {
-        this(streamId, parent, (byte) 1);
+        this(streamId, parent, DEFAULT_WEIGHT);
     }
 
     /**
@@ -48,7 +77,7 @@ public class Stream {
      *
      * @param streamId The stream id of this stream.
      * @param parent The parent of this stream.
-     * @param weight The relative weight of this stream.
+     * @param weight The weight of this stream less one, as sent in HEADERS and PRIORITY frames.
      */
     public Stream(int streamId, Stream parent, byte weight) {
         this.streamId = streamId;
@@ -67,11 +96,53 @@ public class Stream {
     /**
      * @param newState the new state of this stream
      */
-    public void setState(StreamState newState) {
+    public synchronized void setState(StreamState newState) {
         this.state = newState;
     }
 
 
+    /**
+     * Moves this stream to the state following a HEADERS frame sent by this endpoint.
+     *
+     * @return the new state of this stream.
+     */
+    public synchronized StreamState headersSent() {
+        if (state == IDLE) {
+            state = OPEN;
+        } else if (state == RESERVED_LOCAL) {
+            state = HALF_CLOSED_REMOTE;
+        }
+        return state;
+    }
+
+    /**
+     * Moves this stream to the state following an END_STREAM flag sent by this endpoint.
+     *
+     * @return the new state of this stream.
+     */
+    public synchronized StreamState endLocal() {
+        if (state == OPEN) {
+            state = HALF_CLOSED_LOCAL;
+        } else if (state == HALF_CLOSED_REMOTE) {
+            state = CLOSED;
+        }
+        return state;
+    }
+
+    /**
+     * Moves this stream to the state following an END_STREAM flag received from the peer.
+     *
+     * @return the new state of this stream.
+     */
+    public synchronized StreamState endRemote() {
+        if (state == OPEN) {
+            state = HALF_CLOSED_REMOTE;
+        } else if (state == HALF_CLOSED_LOCAL) {
+            state = CLOSED;
+        }
+        return state;
+    }
+
     /**
      * @param newParent the new parent of this stream.
      */
@@ -80,9 +151,258 @@ public class Stream {
     }
 
     /**
-     * @param newWeight the new relative weight of this stream.
+     * @param newWeight the new weight of this stream less one, from 0 to 255 as an unsigned byte.
      */
     public void setWeight(byte newWeight) {
         this.weight = newWeight;
     }
+
+    /**
+     * @return the weight of this stream less one, from 0 to 255 as an unsigned byte.
+     */
+    public byte getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the number of octets this endpoint may currently send on this stream.
+     */
+    public int getSendWindow() {
+        return sendWindow.get();
+    }
+
+    /**
+     * @param newWindow the number of octets this endpoint may send on this stream.
+     */
+    public void setSendWindow(int newWindow) {
+        sendWindow.set(newWindow);
+    }
+
+    /**
+     * Changes the send window of this stream, as done by WINDOW_UPDATE frames,
+     * changes of SETTINGS_INITIAL_WINDOW_SIZE and sent DATA frames.
+     *
+     * @param delta the number of octets to add to the window, may be negative.
+     * @return the new size of the send window.
+     */
+    public int addSendWindow(int delta) {
+        return sendWindow.addAndGet(delta);
+    }
+
+    /**
+     * @return the number of octets the peer may currently send on this stream.
+     */
+    public int getReceiveWindow() {
+        return receiveWindow.get();
+    }
+
+    /**
+     * @param newWindow the number of octets the peer may send on this stream.
+     */
+    public void setReceiveWindow(int newWindow) {
+        receiveWindow.set(newWindow);
+    }
+
+    /**
+     * Changes the receive window of this stream, as done by received DATA frames, sent WINDOW_UPDATE frames
+     * and changes of the local SETTINGS_INITIAL_WINDOW_SIZE.
+     *
+     * @param delta the number of octets to add to the window, may be negative.
+     * @return the new size of the receive window, which is negative if the peer has sent more than it may.
+     */
+    public int addReceiveWindow(int delta) {
+        return receiveWindow.addAndGet(delta);
+    }
+
+    /**
+     * Counts a frame that has been queued for sending on this stream, but not yet written.
+     */
+    public void frameQueued() {
+        if (queuedFrames.getAndIncrement() == 0) {
+            lastWritten = System.nanoTime();
+        }
+    }
+
+    /**
+     * Counts a queued frame that has been written.
+     */
+    public void frameWritten() {
+        lastWritten = System.nanoTime();
+        queuedFrames.decrementAndGet();
+    }
+
+    /**
+     * @return the number of frames queued on this stream but not yet written.
+     */
+    public int getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    /**
+     * Records that a frame has been received on this stream.
+     */
+    public void frameRead() {
+        lastRead = System.nanoTime();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which a frame was last received on this stream, or it was created.
+     */
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which a frame was last written on this stream,
+     * or the first frame waiting to be written was queued.
+     */
+    public long getLastWritten() {
+        return lastWritten;
+    }
+
+    /**
+     * Releases this stream if it is closed and has no frames left to write.
+     * Until then the stream must be kept, as the peer may still update its window.
+     *
+     * @return true only for the first call that finds the stream closed and written.
+     */
+    public boolean release() {
+        return state == CLOSED && queuedFrames.get() == 0 && released.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks this stream as ended, once it is closed or its connection is, even if some of its frames are still
+     * waiting to be written. An ended stream no longer counts against the limit of concurrent streams.
+     *
+     * @return true only for the first call.
+     */
+    public boolean markEnded() {
+        return ended.compareAndSet(false, true);
+    }
+
+    /**
+     * Records when the first HEADERS and DATA frames, and the END_STREAM flag, of this stream are written.
+     *
+     * @param f a frame of this stream that is being written.
+     */
+    public void markWritten(Frame f) {
+        if (f.type == FrameType.HEADERS || f.type == FrameType.DATA) {
+            long now = System.nanoTime();
+            if (f.type == FrameType.HEADERS) {
+                if (headersWrittenAt == 0) {
+                    headersWrittenAt = now;
+                }
+            } else if (dataWrittenAt == 0) {
+                dataWrittenAt = now;
+            }
+            if (Flags.isSet(f.flags, Flags.END_STREAM)) {
+                endWrittenAt = now;
+            }
+        }
+    }
+
+    /**
+     * Records that a handler has started on the request of this stream.
+     */
+    public void markHandlerStarted() {
+        handlerStartedAt = System.nanoTime();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which this stream was created.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which a handler started, or 0.
+     */
+    public long getHandlerStartedAt() {
+        return handlerStartedAt;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the first HEADERS frame was written, or 0.
+     */
+    public long getHeadersWrittenAt() {
+        return headersWrittenAt;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the first DATA frame was written, or 0.
+     */
+    public long getDataWrittenAt() {
+        return dataWrittenAt;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the END_STREAM flag was written, or 0.
+     */
+    public long getEndWrittenAt() {
+        return endWrittenAt;
+    }
+
+    /**
+     * Releases this stream whatever its state, when its connection is closed.
+     *
+     * @return false if the stream was already released.
+     */
+    public boolean abandon() {
+        return released.compareAndSet(false, true);
+    }
+
+    /**
+     * @param subscription the subscription to the body being sent on this stream, or null once the body has ended.
+     */
+    public void setBodySubscription(Flow.Subscription subscription) {
+        bodySubscription.set(subscription);
+    }
+
+    /**
+     * Cancels the subscription to the body being sent on this stream, if there is one, and removes the write
+     * listener, so the publisher can release what it holds once the body can no longer be sent.
+     */
+    public void cancelBody() {
+        writeListener = null;
+        Flow.Subscription subscription = bodySubscription.getAndSet(null);
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * @param listener called each time a whole DATA frame of this stream has been written, or null.
+     */
+    public void setWriteListener(Runnable listener) {
+        this.writeListener = listener;
+    }
+
+    /**
+     * Tells the write listener of this stream that a DATA frame has been written.
+     */
+    public void dataWritten() {
+        Runnable listener = writeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Marks this stream as held back by flow control. Only called by the writer of its connection.
+     *
+     * @return true if the stream was not held back already.
+     */
+    public boolean markBlocked() {
+        boolean first = !blocked;
+        blocked = true;
+        return first;
+    }
+
+    /**
+     * Clears the mark of {@link #markBlocked()}, once DATA of this stream is written again.
+     */
+    public void clearBlocked() {
+        blocked = false;
+    }
 }
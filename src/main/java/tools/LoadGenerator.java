@@ -0,0 +1,610 @@
+package tools;
+
+import connections.ConnectionSettings;
+import connections.Server;
+import connections.ServerConnection;
+import frames.DataFrame;
+import frames.ErrorCode;
+import frames.Flags;
+import frames.Frame;
+import frames.FrameType;
+import frames.GoAwayFrame;
+import frames.HeadersFrame;
+import frames.PingFrame;
+import frames.RSTStreamFrame;
+import frames.SettingsFrame;
+import frames.WindowUpdateFrame;
+import handlers.RequestHandler;
+import handlers.Response;
+import metrics.Histogram;
+import metrics.HistogramSnapshot;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static frames.Flags.ACK;
+import static frames.Flags.END_STREAM;
+import static frames.Setting.SETTINGS_ENABLE_PUSH;
+import static frames.Setting.SETTINGS_INITIAL_WINDOW_SIZE;
+import static frames.Setting.SETTINGS_MAX_CONCURRENT_STREAMS;
+import static frames.Setting.SETTINGS_MAX_FRAME_SIZE;
+
+/**
+ * Generates HTTP/2 load against a server, in the manner of h2load, and reports requests per second,
+ * throughput and latency percentiles.
+ * <p>
+ * Each of N connections keeps up to M streams open, sending a new request as soon as a response ends,
+ * until the requested number of requests have been sent or the duration has passed. Requests are picked at
+ * random from a weighted mix. Frames are encoded and decoded with the {@code frames} classes, one thread per connection.
+ * Request bodies are sent in frames no larger than the SETTINGS_MAX_FRAME_SIZE of the server, as its stream and
+ * connection windows allow, and the rest waits for its WINDOW_UPDATE frames.
+ * Without a target, a server is started in this process on a loopback port, answering every request with
+ * a 200 response, so the library can be measured without any other tools or network access.
+ * <p>
+ * Usage: {@code java tools.LoadGenerator [options] [host:port]}
+ * <ul>
+ * <li>{@code -c N} the number of connections, 1 by default.</li>
+ * <li>{@code -m M} the number of concurrent streams per connection, 10 by default.</li>
+ * <li>{@code -n R} the number of requests, 10000 by default unless a duration is given.</li>
+ * <li>{@code -d S} the duration of the run in seconds.</li>
+ * <li>{@code --mix MIX} the requests, such as {@code /*3,/api/orders*1,POST /upload*1}: a comma separated list of
+ * an optional method, a path and an optional weight. {@code GET /} by default.</li>
+ * <li>{@code --data B} the size of the body of requests that are not GET, up to 65535 bytes. 0 by default.</li>
+ * <li>{@code --response B} the size of the body of the responses of the built-in server, 0 by default.</li>
+ * <li>{@code --tls} connects with TLS and ALPN, trusting the certificates of {@code javax.net.ssl.trustStore}.</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int MAX_DATA = 65535;
+    private static final long DRAIN_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final boolean tls;
+    private final int streams;
+    private final long deadline;
+    private final AtomicLong remaining;
+    private final List<RequestType> mix;
+    private final int totalWeight;
+    private final byte[] data;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder[] statuses = new LongAdder[6];
+    private final Histogram firstByte = new Histogram();
+    private final Histogram latency = new Histogram();
+
+    private LoadGenerator(String host, int port, boolean tls, int streams, long requests, long durationMillis,
+                          List<RequestType> mix, int dataSize) {
+        this.host = host;
+        this.port = port;
+        this.tls = tls;
+        this.streams = streams;
+        this.deadline = durationMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis) : Long.MAX_VALUE;
+        this.remaining = new AtomicLong(requests);
+        this.mix = mix;
+        int weight = 0;
+        for (RequestType t : mix) {
+            weight += t.weight;
+        }
+        this.totalWeight = weight;
+        this.data = new byte[dataSize];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = new LongAdder();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = 1;
+        int streams = 10;
+        long requests = -1;
+        long durationMillis = 0;
+        String mix = "/";
+        int dataSize = 0;
+        int responseSize = 0;
+        boolean tls = false;
+        String target = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-c":
+                        connections = Integer.parseInt(args[++i]);
+                        break;
+                    case "-m":
+                        streams = Integer.parseInt(args[++i]);
+                        break;
+                    case "-n":
+                        requests = Long.parseLong(args[++i]);
+                        break;
+                    case "-d":
+                        durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(args[++i]));
+                        break;
+                    case "--mix":
+                        mix = args[++i];
+                        break;
+                    case "--data":
+                        dataSize = Math.min(MAX_DATA, Integer.parseInt(args[++i]));
+                        break;
+                    case "--response":
+                        responseSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--tls":
+                        tls = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("-") || target != null) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        target = args[i];
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java tools.LoadGenerator [-c connections] [-m streams] [-n requests] [-d seconds]"
+                    + " [--mix mix] [--data bytes] [--response bytes] [--tls] [host:port]");
+            System.exit(2);
+        }
+        if (requests < 0) {
+            requests = durationMillis > 0 ? Long.MAX_VALUE : 10_000;
+        }
+
+        Server server = null;
+        ExecutorService executor = null;
+        String host;
+        int port;
+        if (target == null) {
+            ByteBuffer body = ByteBuffer.allocate(responseSize);
+            RequestHandler handler = request -> new Response(200, body.duplicate());
+            ServerSocket serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+            ExecutorService handlers = Executors.newCachedThreadPool();
+            Server s = new Server(serverSocket, socket -> new ServerConnection(socket, handler, handlers));
+            Thread acceptor = new Thread(() -> {
+                try {
+                    s.serve();
+                } catch (IOException e) {
+                    System.err.println("Server failed: " + e);
+                }
+            }, "load-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            server = s;
+            executor = handlers;
+            host = serverSocket.getInetAddress().getHostAddress();
+            port = serverSocket.getLocalPort();
+        } else {
+            int colon = target.lastIndexOf(':');
+            host = colon < 0 ? target : target.substring(0, colon);
+            port = colon < 0 ? (tls ? 443 : 80) : Integer.parseInt(target.substring(colon + 1));
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, port, tls, streams, requests, durationMillis,
+                RequestType.parse(mix, host + ":" + port, tls, dataSize), dataSize);
+        System.out.println("Running " + connections + " connections with " + streams + " streams each against "
+                + host + ":" + port + (server != null ? " (built-in server)" : ""));
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Thread t = new Thread(generator::runConnection, "load-" + i);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (server != null) {
+            server.drain(DRAIN_MILLIS);
+            executor.shutdown();
+        }
+        generator.report(elapsed);
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long done = completed.sum();
+        System.out.println("Finished in " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms: "
+                + done + " requests completed, " + errors.sum() + " failed");
+        System.out.printf("requests/s: %.1f, throughput: %.2f MB/s%n", done / seconds, bytesRead.sum() / seconds / 1e6);
+        StringBuilder sb = new StringBuilder("status codes:");
+        for (int i = 1; i < statuses.length; i++) {
+            sb.append(' ').append(i).append("xx=").append(statuses[i].sum());
+        }
+        System.out.println(sb);
+        print("time to first byte (us)", firstByte.snapshot());
+        print("latency (us)", latency.snapshot());
+    }
+
+    private static void print(String name, HistogramSnapshot h) {
+        System.out.println(name + ": min=" + h.percentile(0) + ", mean=" + Math.round(h.mean()) + ", p50=" + h.percentile(50)
+                + ", p90=" + h.percentile(90) + ", p99=" + h.percentile(99) + ", p99.9=" + h.percentile(99.9) + ", max=" + h.max);
+    }
+
+    /**
+     * Takes the next request to send, if the run is not over.
+     *
+     * @return the request, or null if no more requests should be sent.
+     */
+    private RequestType nextRequest() {
+        if (System.nanoTime() >= deadline || remaining.getAndDecrement() <= 0) {
+            return null;
+        }
+        int r = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (RequestType t : mix) {
+            r -= t.weight;
+            if (r < 0) {
+                return t;
+            }
+        }
+        return mix.get(mix.size() - 1);
+    }
+
+    private void runConnection() {
+        new ClientSession().run();
+    }
+
+    /**
+     * One connection, with the streams it has open. Only used by the thread running it.
+     */
+    private class ClientSession {
+
+        private final Map<Integer, long[]> open = new HashMap<>();
+        /**
+         * The offset in the body and the send window of the streams whose request body is not all sent yet,
+         * in the order they were opened.
+         */
+        private final Map<Integer, int[]> uploads = new LinkedHashMap<>();
+        private OutputStream out;
+        private DataInputStream in;
+        private int nextStreamId = 1;
+        private int maxStreams = streams;
+        private int unacknowledged = 0;
+        private long connectionWindow = SETTINGS_INITIAL_WINDOW_SIZE.defaultValue;
+        private int initialWindow = SETTINGS_INITIAL_WINDOW_SIZE.defaultValue;
+        private int maxFrameSize = SETTINGS_MAX_FRAME_SIZE.defaultValue;
+        private boolean goingAway = false;
+        private boolean done = false;
+
+        void run() {
+            try (Socket socket = connect()) {
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.write(PREFACE);
+                ConnectionSettings settings = ConnectionSettings.getUndefined();
+                settings.setValue(SETTINGS_ENABLE_PUSH, 0);
+                settings.setValue(SETTINGS_INITIAL_WINDOW_SIZE, MAX_WINDOW);
+                write(new SettingsFrame(0, false, settings));
+                write(new WindowUpdateFrame(0, MAX_WINDOW - SETTINGS_INITIAL_WINDOW_SIZE.defaultValue));
+                fill();
+                out.flush();
+                while (!open.isEmpty() || !uploads.isEmpty()) {
+                    Frame f = read();
+                    if (f != null) {
+                        handle(f);
+                    }
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+                write(new GoAwayFrame(0, 0, ErrorCode.NO_ERROR, ByteBuffer.allocate(0)));
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Connection failed: " + e);
+                errors.add(open.size());
+                open.clear();
+            }
+        }
+
+        private Socket connect() throws IOException {
+            if (!tls) {
+                Socket socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            }
+            SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault().createSocket(host, port);
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setApplicationProtocols(new String[]{"h2"});
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+            if (!"h2".equals(socket.getApplicationProtocol())) {
+                socket.close();
+                throw new IOException("Server did not negotiate h2");
+            }
+            return socket;
+        }
+
+        /**
+         * Opens streams until the connection has as many as allowed, or the run is over.
+         */
+        private void fill() throws IOException {
+            while (!done && !goingAway && streamCount() < maxStreams) {
+                RequestType t = nextRequest();
+                if (t == null) {
+                    done = true;
+                    return;
+                }
+                send(t);
+            }
+        }
+
+        /**
+         * @return the number of streams open on the server, which includes those whose response has ended
+         * while their request body is still being sent.
+         */
+        private int streamCount() {
+            int n = open.size();
+            for (Integer id : uploads.keySet()) {
+                if (!open.containsKey(id)) {
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        private void send(RequestType t) throws IOException {
+            int streamId = nextStreamId;
+            nextStreamId += 2;
+            boolean hasData = t.hasBody && data.length > 0;
+            open.put(streamId, new long[]{System.nanoTime(), 0});
+            write(new HeadersFrame(streamId, !hasData, true, (short) 0, t.headerBlock.duplicate()));
+            if (hasData) {
+                uploads.put(streamId, new int[]{0, initialWindow});
+                sendData();
+            }
+        }
+
+        /**
+         * Sends as much of the pending request bodies as the send windows allow.
+         */
+        private void sendData() throws IOException {
+            Iterator<Map.Entry<Integer, int[]>> it = uploads.entrySet().iterator();
+            while (it.hasNext() && connectionWindow > 0) {
+                Map.Entry<Integer, int[]> e = it.next();
+                int[] upload = e.getValue();
+                while (upload[0] < data.length && upload[1] > 0 && connectionWindow > 0) {
+                    int n = (int) Math.min(Math.min(maxFrameSize, data.length - upload[0]), Math.min(upload[1], connectionWindow));
+                    boolean end = upload[0] + n == data.length;
+                    write(new DataFrame(e.getKey(), ByteBuffer.wrap(data, upload[0], n).slice(), end));
+                    upload[0] += n;
+                    upload[1] -= n;
+                    connectionWindow -= n;
+                }
+                if (upload[0] == data.length) {
+                    it.remove();
+                }
+            }
+        }
+
+        private void handle(Frame f) throws IOException {
+            switch (f.type) {
+                case SETTINGS:
+                    if (!Flags.isSet(f.flags, ACK)) {
+                        int max = ((SettingsFrame) f).settings.valueOf(SETTINGS_MAX_CONCURRENT_STREAMS);
+                        if (max != ConnectionSettings.UNDEFINED) {
+                            maxStreams = Math.max(1, Math.min(streams, max));
+                        }
+                        int frameSize = ((SettingsFrame) f).settings.valueOf(SETTINGS_MAX_FRAME_SIZE);
+                        if (frameSize != ConnectionSettings.UNDEFINED) {
+                            maxFrameSize = frameSize;
+                        }
+                        int window = ((SettingsFrame) f).settings.valueOf(SETTINGS_INITIAL_WINDOW_SIZE);
+                        if (window != ConnectionSettings.UNDEFINED) {
+                            // the change applies to the windows of open streams as well (RFC 7540 6.9.2)
+                            for (int[] upload : uploads.values()) {
+                                upload[1] += window - initialWindow;
+                            }
+                            initialWindow = window;
+                        }
+                        write(new SettingsFrame(0, true, ConnectionSettings.getUndefined()));
+                        sendData();
+                    }
+                    break;
+                case WINDOW_UPDATE:
+                    int increment = ((WindowUpdateFrame) f).windowSizeIncrement;
+                    if (f.streamId == 0) {
+                        connectionWindow += increment;
+                    } else {
+                        int[] upload = uploads.get(f.streamId);
+                        if (upload != null) {
+                            upload[1] += increment;
+                        }
+                    }
+                    sendData();
+                    fill(); // streams whose body has been sent may have made room
+                    break;
+                case PING:
+                    if (!Flags.isSet(f.flags, ACK)) {
+                        write(new PingFrame(0, true, ((PingFrame) f).opaqueData));
+                    }
+                    break;
+                case HEADERS:
+                    HeadersFrame hf = (HeadersFrame) f;
+                    long[] times = open.get(hf.streamId);
+                    if (times != null && times[1] == 0) {
+                        times[1] = System.nanoTime();
+                        firstByte.record(TimeUnit.NANOSECONDS.toMicros(times[1] - times[0]));
+                        countStatus(StandardCharsets.ISO_8859_1.decode(hf.headerBlockFragment.duplicate()).toString());
+                    }
+                    if (Flags.isSet(f.flags, END_STREAM)) {
+                        complete(hf.streamId);
+                    }
+                    break;
+                case DATA:
+                    DataFrame df = (DataFrame) f;
+                    bytesRead.add(df.dataLength());
+                    unacknowledged += df.length;
+                    if (unacknowledged > MAX_WINDOW / 2) {
+                        write(new WindowUpdateFrame(0, unacknowledged));
+                        unacknowledged = 0;
+                    }
+                    if (Flags.isSet(f.flags, END_STREAM)) {
+                        complete(df.streamId);
+                    }
+                    break;
+                case RST_STREAM:
+                    uploads.remove(f.streamId);
+                    if (open.remove(f.streamId) != null) {
+                        errors.increment();
+                        fill();
+                    }
+                    break;
+                case GOAWAY:
+                    goingAway = true;
+                    int last = ((GoAwayFrame) f).lastStreamId;
+                    uploads.keySet().removeIf(id -> id > last);
+                    open.keySet().removeIf(id -> {
+                        if (id > last) {
+                            errors.increment();
+                            return true;
+                        }
+                        return false;
+                    });
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void complete(int streamId) throws IOException {
+            long[] times = open.remove(streamId);
+            if (times == null) {
+                return;
+            }
+            latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - times[0]));
+            completed.increment();
+            fill();
+        }
+
+        private void countStatus(String headers) {
+            int i = headers.indexOf(":status:");
+            if (i < 0) {
+                return;
+            }
+            String rest = headers.substring(i + ":status:".length()).trim();
+            int c = rest.isEmpty() ? 0 : rest.charAt(0) - '0';
+            if (c > 0 && c < statuses.length) {
+                statuses[c].increment();
+            }
+        }
+
+        private void write(Frame f) throws IOException {
+            ByteBuffer b = f.bytes();
+            out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        }
+
+        /**
+         * Reads the next frame.
+         *
+         * @return the frame, or null if it is of a type the generator does not need.
+         */
+        private Frame read() throws IOException {
+            int next = in.readInt();
+            int length = next >>> 8;
+            byte type = (byte) (next & 0xff);
+            byte flags = in.readByte();
+            int streamId = in.readInt() & Integer.MAX_VALUE;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            ByteBuffer b = ByteBuffer.wrap(payload);
+            FrameType ft = FrameType.from(type);
+            if (ft == null) {
+                return null;
+            }
+            switch (ft) {
+                case DATA:
+                    return new DataFrame(flags, streamId, b);
+                case HEADERS:
+                    return new HeadersFrame(flags, streamId, b);
+                case SETTINGS:
+                    return new SettingsFrame(flags, streamId, b);
+                case PING:
+                    return new PingFrame(flags, streamId, b);
+                case RST_STREAM:
+                    return new RSTStreamFrame(flags, streamId, b);
+                case WINDOW_UPDATE:
+                    return new WindowUpdateFrame(flags, streamId, b);
+                case GOAWAY:
+                    return new GoAwayFrame(flags, streamId, b);
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * One kind of request in the mix.
+     */
+    private static class RequestType {
+
+        final ByteBuffer headerBlock;
+        final boolean hasBody;
+        final int weight;
+
+        RequestType(ByteBuffer headerBlock, boolean hasBody, int weight) {
+            this.headerBlock = headerBlock;
+            this.hasBody = hasBody;
+            this.weight = weight;
+        }
+
+        /**
+         * Parses a mix such as {@code /*3,POST /upload*1}.
+         */
+        static List<RequestType> parse(String mix, String authority, boolean tls, int dataSize) {
+            List<RequestType> types = new ArrayList<>();
+            for (String entry : mix.split(",")) {
+                entry = entry.trim();
+                int weight = 1;
+                int star = entry.lastIndexOf('*');
+                if (star > 0) {
+                    weight = Integer.parseInt(entry.substring(star + 1));
+                    entry = entry.substring(0, star);
+                }
+                String method = "GET";
+                String path = entry;
+                int space = entry.indexOf(' ');
+                if (space > 0) {
+                    method = entry.substring(0, space).toUpperCase();
+                    path = entry.substring(space + 1).trim();
+                }
+                if (weight <= 0 || !path.startsWith("/")) {
+                    throw new IllegalArgumentException("Bad request mix entry " + entry);
+                }
+                boolean hasBody = !method.equals("GET") && !method.equals("HEAD");
+                String block = ":method:" + method + "\r\n"
+                        + ":scheme:" + (tls ? "https" : "http") + "\r\n"
+                        + ":authority:" + authority + "\r\n"
+                        + ":path:" + path + "\r\n"
+                        + "user-agent:http2-load-generator\r\n"
+                        + (hasBody ? "content-length:" + dataSize + "\r\n" : "");
+                types.add(new RequestType(ByteBuffer.wrap(block.getBytes(StandardCharsets.US_ASCII)), hasBody, weight));
+            }
+            return types;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package tools;
+
+import capture.CaptureReader;
+import capture.CapturedFrame;
+import connections.ServerConnection;
+import handlers.RequestHandler;
+import handlers.Response;
+import metrics.Latencies;
+import metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the received frames of a capture file against fresh server connections, to measure changes
+ * to the server with real traffic.
+ * <p>
+ * Each captured connection is replayed over its own loopback socket into a {@link ServerConnection},
+ * sending the connection preface and then the frames the server received, either at their original pace
+ * or as fast as possible. Requests are answered with an empty 200 response. The frames the server writes
+ * are read and counted. When done, the metrics and latencies of the run are printed.
+ * <p>
+ * Usage: {@code java tools.Replay <capture file> [--max-speed]}
+ */
+public class Replay {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long DRAIN_MILLIS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java tools.Replay <capture file> [--max-speed]");
+            System.exit(2);
+        }
+        boolean maxSpeed = args.length > 1 && args[1].equals("--max-speed");
+
+        Map<Integer, List<CapturedFrame>> sessions = new LinkedHashMap<>();
+        long frames = 0;
+        long first = Long.MAX_VALUE;
+        try (CaptureReader reader = new CaptureReader(Paths.get(args[0]))) {
+            CapturedFrame f;
+            while ((f = reader.next()) != null) {
+                if (f.received) {
+                    sessions.computeIfAbsent(f.connectionId, k -> new ArrayList<>()).add(f);
+                    frames++;
+                    first = Math.min(first, f.nanos);
+                }
+            }
+        }
+        System.out.println("Replaying " + frames + " frames on " + sessions.size() + " connections"
+                + (maxSpeed ? " at maximum speed" : " at original speed"));
+
+        RequestHandler handler = request -> new Response(200);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        LongAdder bytesRead = new LongAdder();
+        long start = System.nanoTime();
+        long offset = first;
+        List<Thread> threads = new ArrayList<>();
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            for (List<CapturedFrame> session : sessions.values()) {
+                Socket client;
+                Socket accepted;
+                synchronized (serverSocket) {
+                    client = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+                    accepted = serverSocket.accept();
+                }
+                ServerConnection connection = new ServerConnection(accepted, handler, executor);
+                Thread t = new Thread(() -> replay(session, client, connection, start - offset, maxSpeed, bytesRead));
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Replayed in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+                + Math.round(frames / (elapsed / 1e9)) + " frames/s, " + bytesRead.sum() + " bytes read");
+        System.out.print(Metrics.global().snapshot());
+        Latencies.global().snapshot().forEach((route, latency) -> System.out.print(route + "\n" + latency));
+        System.out.print("all routes\n" + Latencies.global().aggregate());
+    }
+
+    /**
+     * Sends the frames of one captured connection.
+     *
+     * @param start the {@link System#nanoTime()} matching the start of the capture.
+     */
+    private static void replay(List<CapturedFrame> session, Socket client, ServerConnection connection,
+                               long start, boolean maxSpeed, LongAdder bytesRead) {
+        try {
+            CountDownLatch answered = new CountDownLatch(1);
+            Thread reader = new Thread(() -> discard(client, bytesRead, answered));
+            reader.setDaemon(true);
+            reader.start();
+            OutputStream os = client.getOutputStream();
+            os.write(PREFACE);
+            os.flush();
+            new Thread(connection::start).start();
+            // frames are only sent once the server has read the preface and answered with its SETTINGS
+            answered.await(DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+            long sent = 0;
+            for (CapturedFrame f : session) {
+                if (!maxSpeed) {
+                    long wait;
+                    while ((wait = start + f.nanos - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                ByteBuffer b = f.bytes;
+                os.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                sent += b.remaining();
+            }
+            os.flush();
+            // wait for the server to read every frame and answer every stream
+            long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+            while ((connection.getMetrics().snapshot().bytesIn < sent || connection.getActiveStreams() > 0)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (IOException e) {
+            System.err.println("Replay of connection failed: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connection.close();
+            connection.awaitClosed(1000);
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void discard(Socket client, LongAdder bytesRead, CountDownLatch answered) {
+        byte[] buffer = new byte[1 << 16];
+        try {
+            InputStream is = client.getInputStream();
+            int n;
+            while ((n = is.read(buffer)) >= 0) {
+                bytesRead.add(n);
+                answered.countDown();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}